@@ -0,0 +1,80 @@
+package org.spxp.crypto.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpConnectKeyPair;
+import org.spxp.crypto.SpxpConnectPublicKey;
+import org.spxp.crypto.SpxpConnectRecipient;
+import org.spxp.crypto.SpxpCryptoEngine;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsymmetricJsonBenchmark {
+
+    @Param({BenchmarkPayloads.POST, BenchmarkPayloads.PROFILE})
+    public String payload;
+
+    private String payloadJson;
+
+    private SpxpConnectKeyPair recipientKeyPair;
+
+    private SpxpConnectPublicKey recipientPublicKey;
+
+    private String json;
+
+    private SpxpConnectRecipient recipient;
+
+    // keeps ephemeral key pairs ready, generated on a background thread
+    private SpxpCryptoEngine pooledEngine;
+
+    // decrypts the same message again and again, like retransmissions
+    private SpxpCryptoEngine cachingEngine;
+
+    @Setup
+    public void setup() throws Exception {
+        payloadJson = BenchmarkPayloads.getPayload(payload).toString();
+        recipientKeyPair = SpxpCryptoToolsV04.generateConnectKeyPair();
+        recipientPublicKey = recipientKeyPair.extractConnectPublicKey();
+        json = SpxpCryptoToolsV04.encryptAsymmetricJson(payloadJson, recipientPublicKey);
+        recipient = SpxpCryptoToolsV04.createConnectRecipient(recipientPublicKey);
+        pooledEngine = SpxpCryptoEngine.builder().ephemeralKeyPoolSize(1024).build();
+        cachingEngine = SpxpCryptoEngine.builder().derivedKeyCacheSize(1024).build();
+    }
+
+    @Benchmark
+    public String encryptAsymmetricJson() throws Exception {
+        return SpxpCryptoToolsV04.encryptAsymmetricJson(payloadJson, recipientPublicKey);
+    }
+
+    @Benchmark
+    public String encryptAsymmetricJsonPooled() throws Exception {
+        return pooledEngine.encryptAsymmetricJson(payloadJson, recipient);
+    }
+
+    @Benchmark
+    public String decryptAsymmetricJson() throws Exception {
+        return SpxpCryptoToolsV04.decryptAsymmetricJson(json, recipientKeyPair);
+    }
+
+    @Benchmark
+    public String decryptAsymmetricJsonCached() throws Exception {
+        return cachingEngine.decryptAsymmetricJson(json, recipientKeyPair);
+    }
+
+}
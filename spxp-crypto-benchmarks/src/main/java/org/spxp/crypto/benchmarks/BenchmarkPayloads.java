@@ -0,0 +1,71 @@
+package org.spxp.crypto.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class BenchmarkPayloads {
+
+    public static final String POST = "post";
+
+    public static final String PROFILE = "profile";
+
+    public static final String FEED = "feed";
+
+    private static final int FEED_SIZE = 100;
+
+    private BenchmarkPayloads() {
+        // prevent instantiation
+    }
+
+    public static JSONObject getPayload(String name) throws IOException {
+        switch(name) {
+        case POST:
+            return loadResource("post.json");
+        case PROFILE:
+            return loadResource("profile.json");
+        case FEED:
+            return buildFeed(FEED_SIZE);
+        default:
+            throw new IllegalArgumentException("Unknown payload: " + name);
+        }
+    }
+
+    private static JSONObject buildFeed(int postCount) throws IOException {
+        // a profile with an embedded page of posts, as returned by a posts endpoint
+        JSONObject profile = loadResource("profile.json");
+        JSONObject post = loadResource("post.json");
+        JSONArray posts = new JSONArray();
+        for(int i = 0; i < postCount; i++) {
+            JSONObject p = new JSONObject(post.toString());
+            p.put("seqts", String.format("2018-09-16T13:%02d:%02d.735", (i / 60) % 60, i % 60));
+            p.put("message", "Post number " + i + " with some text äöü \"quoted\"\n and a line break");
+            posts.put(p);
+        }
+        profile.put("posts", posts);
+        return profile;
+    }
+
+    private static JSONObject loadResource(String name) throws IOException {
+        InputStream in = BenchmarkPayloads.class.getResourceAsStream("/payloads/" + name);
+        if(in == null) {
+            throw new IOException("Missing payload resource " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int bytesRead = -1;
+            while((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+            return new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            in.close();
+        }
+    }
+
+}
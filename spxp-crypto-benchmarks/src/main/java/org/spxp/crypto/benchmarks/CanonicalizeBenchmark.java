@@ -0,0 +1,42 @@
+package org.spxp.crypto.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CanonicalizeBenchmark {
+
+    @Param({BenchmarkPayloads.POST, BenchmarkPayloads.PROFILE, BenchmarkPayloads.FEED})
+    public String payload;
+
+    private JSONObject payloadObject;
+
+    @Setup
+    public void setup() throws Exception {
+        payloadObject = BenchmarkPayloads.getPayload(payload);
+    }
+
+    @Benchmark
+    public String canonicalize() throws Exception {
+        return SpxpCryptoToolsV04.canonicalize(payloadObject, SpxpCryptoToolsV04.OMIT_MEMBERS_VERIFY);
+    }
+
+}
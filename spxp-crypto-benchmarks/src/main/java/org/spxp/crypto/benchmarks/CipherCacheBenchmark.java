@@ -0,0 +1,89 @@
+package org.spxp.crypto.benchmarks;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCipherCache;
+
+// compares a Cipher.getInstance() per operation with the SpxpCipherCache, both
+// running the complete AES-GCM encryption of a small post
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class CipherCacheBenchmark {
+
+    private static final String A256GCM_JCE_ALGO_SPEC = "AES/GCM/NoPadding";
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private byte[] payload;
+
+    private SecretKey secretKey;
+
+    private SpxpCipherCache cipherCache;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private final SecureRandom random = new SecureRandom();
+
+        private final byte[] iv = new byte[12];
+
+        GCMParameterSpec nextIV() {
+            random.nextBytes(iv);
+            return new GCMParameterSpec(128, iv);
+        }
+
+    }
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+        new SecureRandom().nextBytes(payload);
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        secretKey = new SecretKeySpec(key, "AES");
+        cipherCache = new SpxpCipherCache(A256GCM_JCE_ALGO_SPEC);
+    }
+
+    @Benchmark
+    public byte[] newCipherPerOperation(ThreadState state) throws Exception {
+        Cipher c = Cipher.getInstance(A256GCM_JCE_ALGO_SPEC);
+        c.init(Cipher.ENCRYPT_MODE, secretKey, state.nextIV());
+        return c.doFinal(payload);
+    }
+
+    @Benchmark
+    public byte[] cachedCipher(ThreadState state) throws Exception {
+        Cipher c = cipherCache.acquire();
+        try {
+            c.init(Cipher.ENCRYPT_MODE, secretKey, state.nextIV());
+            return c.doFinal(payload);
+        } finally {
+            cipherCache.release(c);
+        }
+    }
+
+}
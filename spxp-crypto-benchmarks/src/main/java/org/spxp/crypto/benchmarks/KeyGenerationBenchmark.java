@@ -0,0 +1,74 @@
+package org.spxp.crypto.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCryptoEngine;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+import org.spxp.crypto.SpxpProfileKeyPair;
+import org.spxp.crypto.SpxpSymmetricKeySpec;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyGenerationBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    private ExecutorService executor;
+
+    private SpxpCryptoEngine parallelEngine;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        parallelEngine = SpxpCryptoEngine.builder().executor(executor).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public SpxpProfileKeyPair generateProfileKeyPair() {
+        return SpxpCryptoToolsV04.generateProfileKeyPair();
+    }
+
+    @Benchmark
+    public List<SpxpProfileKeyPair> generateProfileKeyPairsSequential() {
+        List<SpxpProfileKeyPair> result = new ArrayList<>(BATCH_SIZE);
+        for(int i = 0; i < BATCH_SIZE; i++) {
+            result.add(SpxpCryptoToolsV04.generateProfileKeyPair());
+        }
+        return result;
+    }
+
+    @Benchmark
+    public List<SpxpProfileKeyPair> generateProfileKeyPairs() throws Exception {
+        return parallelEngine.generateProfileKeyPairs(BATCH_SIZE);
+    }
+
+    @Benchmark
+    public List<SpxpSymmetricKeySpec> generateSymmetricKeySpecs() throws Exception {
+        return parallelEngine.generateSymmetricKeySpecs(BATCH_SIZE, SpxpCryptoToolsV04.KeyIdSize.SHORT);
+    }
+
+}
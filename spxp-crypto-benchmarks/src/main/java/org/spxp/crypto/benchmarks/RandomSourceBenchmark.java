@@ -0,0 +1,59 @@
+package org.spxp.crypto.benchmarks;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCryptoEngine;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+import org.spxp.crypto.SpxpDeterministicRandom;
+import org.spxp.crypto.SpxpThreadLocalDrbg;
+
+// draws IVs and key ids from several threads at once
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RandomSourceBenchmark {
+
+    @Param({"shared", "drbg", "deterministic"})
+    public String source;
+
+    private SpxpCryptoEngine engine;
+
+    @Setup
+    public void setup() {
+        if(source.equals("shared")) {
+            engine = SpxpCryptoEngine.builder().secureRandom(new SecureRandom()).build();
+        } else if(source.equals("drbg")) {
+            engine = SpxpCryptoEngine.builder().randomSource(new SpxpThreadLocalDrbg()).build();
+        } else {
+            engine = SpxpCryptoEngine.builder().randomSource(new SpxpDeterministicRandom(1)).build();
+        }
+    }
+
+    @Benchmark
+    public byte[] generateIv() {
+        return engine.generateSymmetricKey(96);
+    }
+
+    @Benchmark
+    public String generateRandomKeyId() {
+        return engine.generateRandomKeyId(SpxpCryptoToolsV04.KeyIdSize.LONG);
+    }
+
+}
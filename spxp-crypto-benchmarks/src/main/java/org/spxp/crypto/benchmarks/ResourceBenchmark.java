@@ -0,0 +1,152 @@
+package org.spxp.crypto.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCryptoEngine;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ResourceBenchmark {
+
+    // resources larger than this are kept in a temporary file instead of on the heap
+    private static final int IN_MEMORY_LIMIT = 64 * 1024 * 1024;
+
+    @Param({"4096", "1048576", "104857600", "1073741824"})
+    public long size;
+
+    private String descriptor;
+
+    private byte[] ciphertext;
+
+    private File ciphertextFile;
+
+    private SpxpCryptoEngine chunkedEngine;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        chunkedEngine = SpxpCryptoEngine.builder()
+                .resourceChunkSize(SpxpCryptoEngine.DEFAULT_RESOURCE_CHUNK_SIZE)
+                .executor(ForkJoinPool.commonPool())
+                .build();
+        OutputStream out;
+        ByteArrayOutputStream bos = null;
+        if(size <= IN_MEMORY_LIMIT) {
+            bos = new ByteArrayOutputStream((int) size);
+            out = bos;
+        } else {
+            ciphertextFile = File.createTempFile("spxp-benchmark-", ".bin");
+            ciphertextFile.deleteOnExit();
+            out = new FileOutputStream(ciphertextFile);
+        }
+        descriptor = SpxpCryptoToolsV04.encryptResource(new SyntheticInputStream(size), out, null);
+        if(bos != null) {
+            ciphertext = bos.toByteArray();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(ciphertextFile != null) {
+            ciphertextFile.delete();
+        }
+    }
+
+    private InputStream openCiphertext() throws IOException {
+        if(ciphertext != null) {
+            return new ByteArrayInputStream(ciphertext);
+        }
+        return new FileInputStream(ciphertextFile);
+    }
+
+    @Benchmark
+    public String encryptResource() throws Exception {
+        return SpxpCryptoToolsV04.encryptResource(new SyntheticInputStream(size), new DiscardingOutputStream(), null);
+    }
+
+    @Benchmark
+    public void decryptResource() throws Exception {
+        SpxpCryptoToolsV04.decryptResource(openCiphertext(), new DiscardingOutputStream(), descriptor);
+    }
+
+    // chunked format, encrypted in parallel on the common pool
+    @Benchmark
+    public String encryptResourceChunked() throws Exception {
+        return chunkedEngine.encryptResource(new SyntheticInputStream(size), new DiscardingOutputStream(), null);
+    }
+
+    static class SyntheticInputStream extends InputStream {
+
+        private long remaining;
+
+        private byte next = 0;
+
+        SyntheticInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return (next++) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            for(int i = 0; i < n; i++) {
+                b[off + i] = next++;
+            }
+            remaining -= n;
+            return n;
+        }
+
+    }
+
+    static class DiscardingOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            // discard
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // discard
+        }
+
+    }
+
+}
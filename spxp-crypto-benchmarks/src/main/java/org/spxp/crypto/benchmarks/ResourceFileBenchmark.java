@@ -0,0 +1,115 @@
+package org.spxp.crypto.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCryptoEngine;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+
+// file to file encryption, through streams, the FileChannel overloads and the
+// AsynchronousFileChannel overloads
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ResourceFileBenchmark {
+
+    @Param({"1048576", "104857600"})
+    public long size;
+
+    private Path plainFile;
+
+    private Path ciphertextFile;
+
+    private Path outputFile;
+
+    private String descriptor;
+
+    // decrypts every size with one direct buffer, or streams every size
+    private final SpxpCryptoEngine directEngine = SpxpCryptoEngine.builder().directResourceDecryptionLimit(Integer.MAX_VALUE - 16).build();
+
+    private final SpxpCryptoEngine streamingEngine = SpxpCryptoEngine.builder().directResourceDecryptionLimit(0).build();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        plainFile = Files.createTempFile("spxp-benchmark-", ".bin");
+        ciphertextFile = Files.createTempFile("spxp-benchmark-", ".bin");
+        outputFile = Files.createTempFile("spxp-benchmark-", ".bin");
+        try(OutputStream out = Files.newOutputStream(plainFile)) {
+            byte[] buffer = new byte[64 * 1024];
+            ResourceBenchmark.SyntheticInputStream in = new ResourceBenchmark.SyntheticInputStream(size);
+            int n;
+            while((n = in.read(buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        descriptor = SpxpCryptoToolsV04.encryptResource(plainFile, ciphertextFile, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(plainFile);
+        Files.deleteIfExists(ciphertextFile);
+        Files.deleteIfExists(outputFile);
+    }
+
+    @Benchmark
+    public String encryptStream() throws Exception {
+        return SpxpCryptoToolsV04.encryptResource(new FileInputStream(plainFile.toFile()), new FileOutputStream(outputFile.toFile()), null);
+    }
+
+    @Benchmark
+    public String encryptChannel() throws Exception {
+        return SpxpCryptoToolsV04.encryptResource(plainFile, outputFile, null);
+    }
+
+    @Benchmark
+    public String encryptAsync() throws Exception {
+        return SpxpCryptoToolsV04.encryptResourceAsync(plainFile, outputFile, null).get();
+    }
+
+    @Benchmark
+    public void decryptStream() throws Exception {
+        SpxpCryptoToolsV04.decryptResource(new FileInputStream(ciphertextFile.toFile()), new FileOutputStream(outputFile.toFile()), descriptor);
+    }
+
+    @Benchmark
+    public void decryptChannel() throws Exception {
+        SpxpCryptoToolsV04.decryptResource(ciphertextFile, outputFile, descriptor);
+    }
+
+    @Benchmark
+    public void decryptChannelDirect() throws Exception {
+        directEngine.decryptResource(ciphertextFile, outputFile, descriptor);
+    }
+
+    @Benchmark
+    public void decryptChannelStreaming() throws Exception {
+        streamingEngine.decryptResource(ciphertextFile, outputFile, descriptor);
+    }
+
+    @Benchmark
+    public void decryptAsync() throws Exception {
+        SpxpCryptoToolsV04.decryptResourceAsync(ciphertextFile, outputFile, descriptor).get();
+    }
+
+}
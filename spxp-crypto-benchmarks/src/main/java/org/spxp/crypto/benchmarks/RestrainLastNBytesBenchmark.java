@@ -0,0 +1,78 @@
+package org.spxp.crypto.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.RestrainLastNBytesOutputStream;
+
+// pushes a resource through RestrainLastNBytesOutputStream in 4096 byte writes, like
+// encryptResource does, with the bulk write path and with the former byte by byte path
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class RestrainLastNBytesBenchmark {
+
+    private static final int WRITE_SIZE = 4096;
+
+    @Param({"104857600"})
+    public long size;
+
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        buffer = new byte[WRITE_SIZE];
+        for(int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) i;
+        }
+    }
+
+    private byte[] pump(RestrainLastNBytesOutputStream out) throws IOException {
+        for(long written = 0; written < size; written += WRITE_SIZE) {
+            out.write(buffer, 0, WRITE_SIZE);
+        }
+        return out.getRestrainedBytes();
+    }
+
+    @Benchmark
+    public byte[] bulkWrite() throws IOException {
+        return pump(new RestrainLastNBytesOutputStream(new ResourceBenchmark.DiscardingOutputStream(), 16));
+    }
+
+    @Benchmark
+    public byte[] byteByByteWrite() throws IOException {
+        return pump(new ByteByByteRestrainLastNBytesOutputStream(new ResourceBenchmark.DiscardingOutputStream(), 16));
+    }
+
+    // the behaviour before the bulk path, inherited from FilterOutputStream
+    static class ByteByByteRestrainLastNBytesOutputStream extends RestrainLastNBytesOutputStream {
+
+        ByteByByteRestrainLastNBytesOutputStream(OutputStream out, int n) {
+            super(out, n);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for(int i = 0; i < len; i++) {
+                write(b[off + i]);
+            }
+        }
+
+    }
+
+}
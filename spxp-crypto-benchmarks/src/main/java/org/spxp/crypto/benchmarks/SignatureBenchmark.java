@@ -0,0 +1,163 @@
+package org.spxp.crypto.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCryptoEngine;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+import org.spxp.crypto.SpxpProfileKeyPair;
+import org.spxp.crypto.SpxpProfilePublicKey;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    private static final List<String> REQUIRED_PERMISSIONS = Collections.singletonList("post");
+
+    private static final int PAGE_SIZE = 20;
+
+    @Param({BenchmarkPayloads.POST, BenchmarkPayloads.PROFILE, BenchmarkPayloads.FEED})
+    public String payload;
+
+    private String payloadJson;
+
+    private SpxpProfileKeyPair profileKeyPair;
+
+    private SpxpProfilePublicKey profilePublicKey;
+
+    private JSONObject signedWithKey;
+
+    private JSONObject signedWithCertificate;
+
+    private SpxpCryptoEngine cachedEngine;
+
+    // a page of objects signed with the same certificate, like the posts of a feed
+    private List<JSONObject> page;
+
+    private ExecutorService executor;
+
+    private SpxpCryptoEngine parallelEngine;
+
+    @Setup
+    public void setup() throws Exception {
+        payloadJson = BenchmarkPayloads.getPayload(payload).toString();
+        profileKeyPair = SpxpCryptoToolsV04.generateProfileKeyPair();
+        profilePublicKey = profileKeyPair.extractProfilePublicKey();
+        // object signed directly with the profile key
+        signedWithKey = new JSONObject(payloadJson);
+        SpxpCryptoToolsV04.signObject(signedWithKey, profileKeyPair);
+        // object signed with a delegated key, certified by the profile key
+        SpxpProfileKeyPair delegatedKeyPair = SpxpCryptoToolsV04.generateProfileKeyPair();
+        JSONObject certificate = new JSONObject();
+        certificate.put("publicKey", SpxpCryptoToolsV04.getPublicJWK(delegatedKeyPair.extractProfilePublicKey()));
+        certificate.put("grant", new JSONArray(REQUIRED_PERMISSIONS));
+        SpxpCryptoToolsV04.signObject(certificate, profileKeyPair);
+        signedWithCertificate = new JSONObject(payloadJson);
+        SpxpCryptoToolsV04.signObject(signedWithCertificate, delegatedKeyPair);
+        signedWithCertificate.getJSONObject("signature").put("key", certificate);
+        if(!SpxpCryptoToolsV04.verifySignature(signedWithKey, profilePublicKey, null, null) ||
+                !SpxpCryptoToolsV04.verifySignature(signedWithCertificate, profilePublicKey, null, REQUIRED_PERMISSIONS)) {
+            throw new IllegalStateException("Benchmark setup failed to produce valid signatures");
+        }
+        cachedEngine = SpxpCryptoEngine.builder().certificateCacheSize(SpxpCryptoEngine.DEFAULT_CERTIFICATE_CACHE_SIZE).build();
+        page = new ArrayList<>(PAGE_SIZE);
+        for(int i = 0; i < PAGE_SIZE; i++) {
+            JSONObject obj = new JSONObject(payloadJson);
+            obj.put("seqts", Integer.toString(i));
+            SpxpCryptoToolsV04.signObject(obj, delegatedKeyPair);
+            obj.getJSONObject("signature").put("key", certificate);
+            page.add(obj);
+        }
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        parallelEngine = SpxpCryptoEngine.builder().executor(executor).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public JSONObject signObject() throws Exception {
+        JSONObject obj = new JSONObject(payloadJson);
+        SpxpCryptoToolsV04.signObject(obj, profileKeyPair);
+        return obj;
+    }
+
+    @Benchmark
+    public List<JSONObject> signObjectsPageSequential() throws Exception {
+        List<JSONObject> objects = newUnsignedPage();
+        for(JSONObject obj : objects) {
+            SpxpCryptoToolsV04.signObject(obj, profileKeyPair);
+        }
+        return objects;
+    }
+
+    @Benchmark
+    public List<JSONObject> signObjectsPage() throws Exception {
+        List<JSONObject> objects = newUnsignedPage();
+        parallelEngine.signObjects(objects, profileKeyPair);
+        return objects;
+    }
+
+    private List<JSONObject> newUnsignedPage() {
+        List<JSONObject> objects = new ArrayList<>(PAGE_SIZE);
+        for(int i = 0; i < PAGE_SIZE; i++) {
+            objects.add(new JSONObject(payloadJson));
+        }
+        return objects;
+    }
+
+    @Benchmark
+    public boolean verifySignature() throws Exception {
+        return SpxpCryptoToolsV04.verifySignature(signedWithKey, profilePublicKey, null, null);
+    }
+
+    @Benchmark
+    public boolean verifySignatureCertificateChain() throws Exception {
+        return SpxpCryptoToolsV04.verifySignature(signedWithCertificate, profilePublicKey, null, REQUIRED_PERMISSIONS);
+    }
+
+    // the certificate is only verified once
+    @Benchmark
+    public boolean verifySignatureCertificateChainCached() throws Exception {
+        return cachedEngine.verifySignature(signedWithCertificate, profilePublicKey, null, REQUIRED_PERMISSIONS);
+    }
+
+    @Benchmark
+    public boolean[] verifySignaturesPageSequential() throws Exception {
+        boolean[] result = new boolean[page.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = SpxpCryptoToolsV04.verifySignature(page.get(i), profilePublicKey, null, REQUIRED_PERMISSIONS);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public boolean[] verifySignaturesPage() throws Exception {
+        return parallelEngine.verifySignatures(page, profilePublicKey, null, REQUIRED_PERMISSIONS);
+    }
+
+}
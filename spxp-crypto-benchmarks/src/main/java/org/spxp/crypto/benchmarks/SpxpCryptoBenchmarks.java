@@ -0,0 +1,29 @@
+package org.spxp.crypto.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class SpxpCryptoBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        // same command line as org.openjdk.jmh.Main, but always report allocation rates
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if(cmdOptions.shouldHelp()) {
+            cmdOptions.showHelp();
+            return;
+        }
+        if(cmdOptions.shouldList()) {
+            new Runner(cmdOptions).list();
+            return;
+        }
+        Options options = new OptionsBuilder()
+                .parent(cmdOptions)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.spxp.crypto.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCryptoEngine;
+import org.spxp.crypto.SpxpCryptoNoSuchKeyException;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+import org.spxp.crypto.SpxpCryptoToolsV04.KeyIdSize;
+import org.spxp.crypto.SpxpKeyProvider;
+import org.spxp.crypto.SpxpSymmetricKeySpec;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SymmetricCompactBenchmark {
+
+    @Param({BenchmarkPayloads.POST, BenchmarkPayloads.PROFILE, BenchmarkPayloads.FEED})
+    public String payload;
+
+    private String payloadJson;
+
+    private SpxpSymmetricKeySpec keySpec;
+
+    private SpxpKeyProvider keyProvider;
+
+    private String compact;
+
+    private SpxpCryptoEngine keyCacheEngine;
+
+    @Setup
+    public void setup() throws Exception {
+        payloadJson = BenchmarkPayloads.getPayload(payload).toString();
+        keySpec = new SpxpSymmetricKeySpec(SpxpCryptoToolsV04.generateRandomKeyId(KeyIdSize.LONG), SpxpCryptoToolsV04.generateSymmetricKey(256));
+        final SecretKey secretKey = new SecretKeySpec(keySpec.getSymmetricKey(), "AES");
+        keyProvider = new SpxpKeyProvider() {
+            @Override
+            public SecretKey getKey(String keyId) throws SpxpCryptoNoSuchKeyException {
+                if(!keySpec.getKeyId().equals(keyId)) {
+                    throw new SpxpCryptoNoSuchKeyException();
+                }
+                return secretKey;
+            }
+        };
+        compact = SpxpCryptoToolsV04.encryptSymmetricCompact(payloadJson, keySpec);
+        keyCacheEngine = SpxpCryptoEngine.builder().keyCacheSize(16).build();
+    }
+
+    @Benchmark
+    public String encryptSymmetricCompact() throws Exception {
+        return SpxpCryptoToolsV04.encryptSymmetricCompact(payloadJson, keySpec);
+    }
+
+    @Benchmark
+    public String decryptSymmetricCompact() throws Exception {
+        return SpxpCryptoToolsV04.decryptSymmetricCompact(compact, keyProvider);
+    }
+
+    @Benchmark
+    public String encryptSymmetricCompactKeyCache() throws Exception {
+        return keyCacheEngine.encryptSymmetricCompact(payloadJson, keySpec);
+    }
+
+    @Benchmark
+    public String decryptSymmetricCompactKeyCache() throws Exception {
+        return keyCacheEngine.decryptSymmetricCompact(compact, keyProvider);
+    }
+
+}
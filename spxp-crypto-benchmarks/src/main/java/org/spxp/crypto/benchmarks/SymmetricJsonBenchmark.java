@@ -0,0 +1,102 @@
+package org.spxp.crypto.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spxp.crypto.SpxpCryptoEngine;
+import org.spxp.crypto.SpxpCryptoNoSuchKeyException;
+import org.spxp.crypto.SpxpCryptoToolsV04;
+import org.spxp.crypto.SpxpCryptoToolsV04.KeyIdSize;
+import org.spxp.crypto.SpxpKeyProvider;
+import org.spxp.crypto.SpxpSymmetricKeySpec;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SymmetricJsonBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int recipients;
+
+    @Param({BenchmarkPayloads.POST, BenchmarkPayloads.PROFILE})
+    public String payload;
+
+    private String payloadJson;
+
+    private List<SpxpSymmetricKeySpec> recipientKeys;
+
+    private SpxpKeyProvider keyProvider;
+
+    private String json;
+
+    private SpxpCryptoEngine parallelEngine;
+
+    private SpxpCryptoEngine keyCacheEngine;
+
+    @Setup
+    public void setup() throws Exception {
+        payloadJson = BenchmarkPayloads.getPayload(payload).toString();
+        recipientKeys = new ArrayList<>(recipients);
+        for(int i = 0; i < recipients; i++) {
+            recipientKeys.add(new SpxpSymmetricKeySpec(SpxpCryptoToolsV04.generateRandomKeyId(KeyIdSize.LONG), SpxpCryptoToolsV04.generateSymmetricKey(256)));
+        }
+        // the reader only holds the round key of the last recipient, which is the worst case for decryption
+        final SpxpSymmetricKeySpec readerKey = recipientKeys.get(recipients - 1);
+        final SecretKey secretKey = new SecretKeySpec(readerKey.getSymmetricKey(), "AES");
+        keyProvider = new SpxpKeyProvider() {
+            @Override
+            public SecretKey getKey(String keyId) throws SpxpCryptoNoSuchKeyException {
+                if(!readerKey.getKeyId().equals(keyId)) {
+                    throw new SpxpCryptoNoSuchKeyException();
+                }
+                return secretKey;
+            }
+        };
+        json = SpxpCryptoToolsV04.encryptSymmetricJson(payloadJson, recipientKeys);
+        parallelEngine = SpxpCryptoEngine.builder().executor(ForkJoinPool.commonPool()).build();
+        keyCacheEngine = SpxpCryptoEngine.builder().keyCacheSize(recipients).build();
+    }
+
+    @Benchmark
+    public String encryptSymmetricJson() throws Exception {
+        return SpxpCryptoToolsV04.encryptSymmetricJson(payloadJson, recipientKeys);
+    }
+
+    // wraps the CEK on the common pool once there are more than
+    // SpxpCryptoEngine.DEFAULT_PARALLEL_RECIPIENT_THRESHOLD recipients
+    @Benchmark
+    public String encryptSymmetricJsonParallel() throws Exception {
+        return parallelEngine.encryptSymmetricJson(payloadJson, recipientKeys);
+    }
+
+    // every recipient key stays in the key cache, ready to use
+    @Benchmark
+    public String encryptSymmetricJsonKeyCache() throws Exception {
+        return keyCacheEngine.encryptSymmetricJson(payloadJson, recipientKeys);
+    }
+
+    @Benchmark
+    public String decryptSymmetricJson() throws Exception {
+        return SpxpCryptoToolsV04.decryptSymmetricJson(json, keyProvider);
+    }
+
+}
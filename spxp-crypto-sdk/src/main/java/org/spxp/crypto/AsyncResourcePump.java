@@ -0,0 +1,254 @@
+package org.spxp.crypto;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+// Copies src to dest through a Transform without blocking a thread: every read and write
+// is an asynchronous file operation, and the next step is started from its completion
+// handler. The transform itself runs on the threads of the channel group.
+// Only one buffer is in flight at a time, so the memory used is bounded by the buffer
+// size and the chunk size of the transform.
+final class AsyncResourcePump {
+
+    // incremental encryption or decryption of a resource
+    interface Transform {
+
+        // upper bound of the output of update() for len bytes of input
+        int getUpdateOutputSize(int len);
+
+        int update(byte[] in, int off, int len, byte[] out, int outOff) throws IOException, GeneralSecurityException;
+
+        // upper bound of the output of doFinal()
+        int getFinalOutputSize();
+
+        int doFinal(byte[] out, int outOff) throws IOException, GeneralSecurityException;
+
+        // the single auth tag of the stream format after doFinal(), null for other formats
+        byte[] getTag();
+
+        // releases the resources of the transform, also if it has not been finished
+        void close();
+
+    }
+
+    private final AsynchronousFileChannel src;
+
+    private final AsynchronousFileChannel dest;
+
+    private final Transform transform;
+
+    private final ByteBuffer in;
+
+    private byte[] out;
+
+    private long readPosition = 0;
+
+    private long writePosition = 0;
+
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    AsyncResourcePump(AsynchronousFileChannel src, AsynchronousFileChannel dest, Transform transform, int bufferSize) {
+        this.src = src;
+        this.dest = dest;
+        this.transform = transform;
+        this.in = ByteBuffer.allocate(bufferSize);
+        this.out = new byte[transform.getUpdateOutputSize(bufferSize)];
+    }
+
+    // starts the transfer from the start of src to the start of dest
+    CompletableFuture<Void> start() {
+        read();
+        return result;
+    }
+
+    private void read() {
+        ((Buffer) in).clear();
+        src.read(in, readPosition, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer n, Void attachment) {
+                try {
+                    if(n < 0) {
+                        int length = transform.doFinal(ensureOutput(transform.getFinalOutputSize()), 0);
+                        write(ByteBuffer.wrap(out, 0, length), true);
+                        return;
+                    }
+                    readPosition += n;
+                    int length = transform.update(in.array(), 0, n, ensureOutput(transform.getUpdateOutputSize(n)), 0);
+                    write(ByteBuffer.wrap(out, 0, length), false);
+                } catch(IOException | GeneralSecurityException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                fail(exc);
+            }
+        });
+    }
+
+    private void write(final ByteBuffer buffer, final boolean finished) {
+        if(!buffer.hasRemaining()) {
+            next(finished);
+            return;
+        }
+        dest.write(buffer, writePosition, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer n, Void attachment) {
+                writePosition += n;
+                write(buffer, finished);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                fail(exc);
+            }
+        });
+    }
+
+    private void next(boolean finished) {
+        if(!finished) {
+            read();
+            return;
+        }
+        transform.close();
+        result.complete(null);
+    }
+
+    private void fail(Throwable exc) {
+        transform.close();
+        result.completeExceptionally(exc);
+    }
+
+    private byte[] ensureOutput(int size) {
+        if(out.length < size) {
+            out = new byte[size];
+        }
+        return out;
+    }
+
+    // single AES-GCM stream encryption with a cipher acquired from the engine and
+    // initialised for encryption. The tag is split off the cipher text
+    static final class GcmEncryptTransform implements Transform {
+
+        private final SpxpCryptoEngine engine;
+
+        private Cipher cipher;
+
+        private final int tagSize;
+
+        private byte[] tag = null;
+
+        GcmEncryptTransform(SpxpCryptoEngine engine, Cipher cipher, int tagSize) {
+            this.engine = engine;
+            this.cipher = cipher;
+            this.tagSize = tagSize;
+        }
+
+        @Override
+        public int getUpdateOutputSize(int len) {
+            return cipher.getOutputSize(len);
+        }
+
+        @Override
+        public int update(byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            return cipher.update(in, off, len, out, outOff);
+        }
+
+        @Override
+        public int getFinalOutputSize() {
+            return cipher.getOutputSize(0);
+        }
+
+        @Override
+        public int doFinal(byte[] out, int outOff) throws GeneralSecurityException {
+            byte[] last = cipher.doFinal();
+            int length = last.length - tagSize;
+            System.arraycopy(last, 0, out, outOff, length);
+            tag = Arrays.copyOfRange(last, length, last.length);
+            return length;
+        }
+
+        @Override
+        public byte[] getTag() {
+            return tag;
+        }
+
+        @Override
+        public void close() {
+            if(cipher != null) {
+                engine.releaseCipher(cipher);
+                cipher = null;
+            }
+        }
+
+    }
+
+    // single AES-GCM stream decryption. Like GcmDecryptingInputStream this uses the
+    // streaming GCM of BouncyCastle, so the plain text written to dest has only been
+    // authenticated once doFinal() succeeded
+    static final class GcmDecryptTransform implements Transform {
+
+        private final GCMBlockCipher cipher;
+
+        private final byte[] tag;
+
+        GcmDecryptTransform(byte[] key, byte[] iv, byte[] tag) {
+            this.tag = tag;
+            this.cipher = new GCMBlockCipher(new AESEngine());
+            this.cipher.init(false, new AEADParameters(new KeyParameter(key), tag.length * 8, iv));
+        }
+
+        @Override
+        public int getUpdateOutputSize(int len) {
+            return cipher.getUpdateOutputSize(len);
+        }
+
+        @Override
+        public int update(byte[] in, int off, int len, byte[] out, int outOff) {
+            return cipher.processBytes(in, off, len, out, outOff);
+        }
+
+        @Override
+        public int getFinalOutputSize() {
+            return cipher.getOutputSize(tag.length);
+        }
+
+        @Override
+        public int doFinal(byte[] out, int outOff) throws GeneralSecurityException {
+            try {
+                int length = cipher.processBytes(tag, 0, tag.length, out, outOff);
+                return length + cipher.doFinal(out, outOff + length);
+            } catch(InvalidCipherTextException e) {
+                throw new AEADBadTagException(e.getMessage());
+            }
+        }
+
+        @Override
+        public byte[] getTag() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+
+    }
+
+}
@@ -0,0 +1,123 @@
+package org.spxp.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Base64url without padding, working directly on byte arrays and (possibly direct)
+// ByteBuffers. java.util.Base64 can only decode whole arrays or allocate new buffers
+final class Base64Url {
+
+    private static final byte[] ENCODE_TABLE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int[] DECODE_TABLE = new int[256];
+
+    static {
+        Arrays.fill(DECODE_TABLE, -1);
+        for(int i = 0; i < ENCODE_TABLE.length; i++) {
+            DECODE_TABLE[ENCODE_TABLE[i]] = i;
+        }
+    }
+
+    private Base64Url() {
+        // prevent instantiation
+    }
+
+    static int encodedLength(int len) {
+        return (len / 3) * 4 + ((len % 3) == 0 ? 0 : (len % 3) + 1);
+    }
+
+    // length of the data encoded in src[from, to), which may carry up to two padding characters
+    static int decodedLength(ByteBuffer src, int from, int to) {
+        int len = unpaddedEnd(src, from, to) - from;
+        if(len % 4 == 1) {
+            throw new IllegalArgumentException("Invalid Base64url length");
+        }
+        return (len / 4) * 3 + ((len % 4) == 0 ? 0 : (len % 4) - 1);
+    }
+
+    // strips up to two padding characters from the end of a complete encoding
+    static int unpaddedEnd(ByteBuffer src, int from, int to) {
+        if((to - from) % 4 == 0) {
+            for(int i = 0; i < 2 && to > from && src.get(to - 1) == '='; i++) {
+                to--;
+            }
+        }
+        return to;
+    }
+
+    // appends the encoding of src[off, off+len) to dst. If len is not a multiple of 3,
+    // the last group is written without padding, so chunked encoding must feed multiples of 3
+    static void encode(byte[] src, int off, int len, ByteBuffer dst) {
+        int end = off + len;
+        int i = off;
+        while(end - i >= 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst.put(ENCODE_TABLE[(bits >>> 18) & 0x3f]);
+            dst.put(ENCODE_TABLE[(bits >>> 12) & 0x3f]);
+            dst.put(ENCODE_TABLE[(bits >>> 6) & 0x3f]);
+            dst.put(ENCODE_TABLE[bits & 0x3f]);
+            i += 3;
+        }
+        int remaining = end - i;
+        if(remaining == 1) {
+            int bits = (src[i] & 0xff) << 16;
+            dst.put(ENCODE_TABLE[(bits >>> 18) & 0x3f]);
+            dst.put(ENCODE_TABLE[(bits >>> 12) & 0x3f]);
+        } else if(remaining == 2) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8;
+            dst.put(ENCODE_TABLE[(bits >>> 18) & 0x3f]);
+            dst.put(ENCODE_TABLE[(bits >>> 12) & 0x3f]);
+            dst.put(ENCODE_TABLE[(bits >>> 6) & 0x3f]);
+        }
+    }
+
+    // decodes src[from, to) into dst starting at dstOff, using absolute reads so that
+    // the position of src is not touched. Returns the number of bytes written.
+    // Padding is not accepted here, see unpaddedEnd()
+    static int decode(ByteBuffer src, int from, int to, byte[] dst, int dstOff) {
+        int d = dstOff;
+        int i = from;
+        while(to - i >= 4) {
+            int bits = sextet(src.get(i)) << 18 | sextet(src.get(i + 1)) << 12 | sextet(src.get(i + 2)) << 6 | sextet(src.get(i + 3));
+            dst[d++] = (byte) (bits >>> 16);
+            dst[d++] = (byte) (bits >>> 8);
+            dst[d++] = (byte) bits;
+            i += 4;
+        }
+        int remaining = to - i;
+        if(remaining == 2) {
+            int bits = sextet(src.get(i)) << 18 | sextet(src.get(i + 1)) << 12;
+            dst[d++] = (byte) (bits >>> 16);
+        } else if(remaining == 3) {
+            int bits = sextet(src.get(i)) << 18 | sextet(src.get(i + 1)) << 12 | sextet(src.get(i + 2)) << 6;
+            dst[d++] = (byte) (bits >>> 16);
+            dst[d++] = (byte) (bits >>> 8);
+        } else if(remaining == 1) {
+            throw new IllegalArgumentException("Invalid Base64url length");
+        }
+        return d - dstOff;
+    }
+
+    static byte[] decode(ByteBuffer src, int from, int to) {
+        byte[] result = new byte[decodedLength(src, from, to)];
+        decode(src, from, unpaddedEnd(src, from, to), result, 0);
+        return result;
+    }
+
+    static int sextet(char c) {
+        if(c > 0xff) {
+            throw new IllegalArgumentException("Illegal Base64url character " + (int) c);
+        }
+        return sextet((byte) c);
+    }
+
+    private static int sextet(byte b) {
+        int result = DECODE_TABLE[b & 0xff];
+        if(result < 0) {
+            throw new IllegalArgumentException("Illegal Base64url character " + (b & 0xff));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,285 @@
+package org.spxp.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+// Writes the canonical form of a JSON object, as used for signatures, as UTF-8 straight
+// into a growable byte buffer. The buffer is meant to be reused, e.g. per thread, and is
+// passed to Ed25519 without copying it. Members are sorted by their UTF-16 code units,
+// like a TreeSet of the keys would, and runs of plain ASCII characters are copied without
+// going through the escaping. The output is byte for byte the same as the UTF-8 encoding
+// of the former String based canonicalization.
+// With a sink, the buffer is flushed to it whenever it is full, so the memory used stays
+// bounded by the buffer size and the longest string, not by the size of the document.
+final class CanonicalJsonWriter {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    // larger buffers are dropped on reset() instead of being kept for the next object
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream sink;
+
+    private byte[] buffer;
+
+    private int length = 0;
+
+    CanonicalJsonWriter() {
+        this(null, INITIAL_CAPACITY);
+    }
+
+    CanonicalJsonWriter(OutputStream sink, int bufferSize) {
+        this.sink = sink;
+        this.buffer = new byte[bufferSize];
+    }
+
+    void reset() {
+        length = 0;
+        if(buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    // writes the buffered bytes to the sink
+    void flush() throws IOException {
+        if(sink != null && length > 0) {
+            sink.write(buffer, 0, length);
+            length = 0;
+        }
+    }
+
+    // the canonical form written so far, or since the last flush, is buffer[0, length)
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    void writeObject(JSONObject jsonObject, Set<String> omitMembers) throws JSONException, IOException {
+        boolean commanate = false;
+        writeByte('{');
+        String[] keys = jsonObject.keySet().toArray(new String[jsonObject.length()]);
+        Arrays.sort(keys);
+        for(String key : keys) {
+            if(omitMembers != null && omitMembers.contains(key)) {
+                continue;
+            }
+            Object value = jsonObject.opt(key);
+            if(commanate) {
+                writeByte(',');
+            }
+            writeQuotedString(key);
+            writeByte(':');
+            try {
+                writeValue(value);
+            } catch(Exception e) {
+                throw new JSONException("Unable to write JSONObject value for key: " + key, e);
+            }
+            commanate = true;
+        }
+        writeByte('}');
+    }
+
+    // appends text as UTF-8 without quotes or escaping, e.g. the aad of a signature
+    void writeRaw(String text) throws IOException {
+        int n = text.length();
+        ensureCapacity(3 * n);
+        for(int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if(c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else {
+                i = writeNonAscii(text, i);
+            }
+        }
+    }
+
+    private void writeValue(Object value) throws JSONException, IOException {
+        if(value == null || value.equals(null)) {
+            writeAscii("null");
+        } else if(value instanceof JSONString) {
+            throw new JSONException("JSONString interface not supported for canonicalization");
+        } else if(value instanceof Number) {
+            // not all Numbers may match actual JSON Numbers. i.e. fractions or Imaginary
+            final String numberAsString = JSONObject.numberToString((Number) value);
+            try {
+                // Use the BigDecimal constructor for its parser to validate the format.
+                @SuppressWarnings("unused")
+                BigDecimal testNum = new BigDecimal(numberAsString);
+                // Close enough to a JSON number that we will use it unquoted
+                writeRaw(numberAsString);
+            } catch(NumberFormatException ex) {
+                // The Number value is not a valid JSON number.
+                // Instead we will quote it as a string
+                writeQuotedString(numberAsString);
+            }
+        } else if(value instanceof Boolean) {
+            writeAscii(((Boolean) value).booleanValue() ? "true" : "false");
+        } else if(value instanceof Enum<?>) {
+            writeQuotedString(((Enum<?>) value).name());
+        } else if(value instanceof JSONObject) {
+            writeObject((JSONObject) value, null);
+        } else if(value instanceof JSONArray) {
+            writeArray((JSONArray) value);
+        } else if(value instanceof Map) {
+            writeObject(new JSONObject((Map<?, ?>) value), null);
+        } else if(value instanceof Collection) {
+            writeArray(new JSONArray((Collection<?>) value));
+        } else if(value.getClass().isArray()) {
+            writeArray(new JSONArray(value));
+        } else {
+            writeQuotedString(value.toString());
+        }
+    }
+
+    private void writeArray(JSONArray value) throws JSONException, IOException {
+        int n = value.length();
+        writeByte('[');
+        for(int i = 0; i < n; i++) {
+            if(i > 0) {
+                writeByte(',');
+            }
+            writeValue(value.get(i));
+        }
+        writeByte(']');
+    }
+
+    private void writeQuotedString(String value) throws IOException {
+        int n = value.length();
+        // 3 bytes per char at most, escapes reserve their extra bytes on their own
+        ensureCapacity(3 * n + 2);
+        buffer[length++] = '"';
+        int i = 0;
+        while(i < n) {
+            // fast path for plain ASCII
+            char c = value.charAt(i);
+            while(c >= ' ' && c < 0x80 && c != '"' && c != '\\') {
+                buffer[length++] = (byte) c;
+                if(++i == n) {
+                    break;
+                }
+                c = value.charAt(i);
+            }
+            if(i == n) {
+                break;
+            }
+            switch(c) {
+            case '"':
+                writeEscape('"', n - i);
+                break;
+            case '\\':
+                writeEscape('\\', n - i);
+                break;
+            case '\t':
+                writeEscape('t', n - i);
+                break;
+            case '\b':
+                writeEscape('b', n - i);
+                break;
+            case '\n':
+                writeEscape('n', n - i);
+                break;
+            case '\r':
+                writeEscape('r', n - i);
+                break;
+            case '\f':
+                writeEscape('f', n - i);
+                break;
+            default:
+                if(c < ' ') {
+                    ensureCapacity(6 + 3 * (n - i) + 1);
+                    buffer[length++] = '\\';
+                    buffer[length++] = 'u';
+                    buffer[length++] = '0';
+                    buffer[length++] = '0';
+                    buffer[length++] = HEX[c >> 4];
+                    buffer[length++] = HEX[c & 0xf];
+                } else {
+                    i = writeNonAscii(value, i);
+                }
+            }
+            i++;
+        }
+        buffer[length++] = '"';
+    }
+
+    // remaining is the number of chars not yet written, including the escaped one
+    private void writeEscape(char c, int remaining) throws IOException {
+        ensureCapacity(2 + 3 * remaining + 1);
+        buffer[length++] = '\\';
+        buffer[length++] = (byte) c;
+    }
+
+    // encodes the char at index i, which has to fit into the capacity reserved for it,
+    // and returns the index of the last char consumed. Lone surrogates become '?' like
+    // with String.getBytes()
+    private int writeNonAscii(String text, int i) {
+        char c = text.charAt(i);
+        if(c < 0x800) {
+            buffer[length++] = (byte) (0xc0 | (c >> 6));
+            buffer[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, text.charAt(i + 1));
+            buffer[length++] = (byte) (0xf0 | (cp >> 18));
+            buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+            return i + 1;
+        } else if(Character.isSurrogate(c)) {
+            buffer[length++] = '?';
+        } else {
+            buffer[length++] = (byte) (0xe0 | (c >> 12));
+            buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void writeAscii(String text) throws IOException {
+        int n = text.length();
+        ensureCapacity(n);
+        for(int i = 0; i < n; i++) {
+            buffer[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void writeByte(char c) throws IOException {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) throws IOException {
+        int required = length + extra;
+        if(required > buffer.length && sink != null) {
+            flush();
+            required = extra;
+        }
+        if(required < 0) {
+            throw new OutOfMemoryError("Canonical form too large");
+        }
+        if(required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+
+}
@@ -0,0 +1,465 @@
+package org.spxp.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// Chunked resource format. The plain text is split into chunks of chunkSize bytes, and
+// every chunk is encrypted on its own with AES-GCM into chunkSize + 16 bytes, so chunks
+// can be processed in parallel and decrypted independently.
+// The nonce of chunk i is the IV with its last 4 bytes XORed with i (big endian). The AAD
+// of each chunk is a single byte, 1 for the last chunk and 0 otherwise, so that dropping
+// or appending chunks is detected. Only the last chunk may be shorter, an empty resource
+// consists of a single empty last chunk.
+final class ChunkedResourceCipher {
+
+    static final int TAG_SIZE = 16;
+
+    private static final byte[] AAD_NOT_FINAL = new byte[] {0};
+
+    private static final byte[] AAD_FINAL = new byte[] {1};
+
+    private static final long MAX_CHUNKS = 1L << 32;
+
+    private final SpxpCryptoEngine engine;
+
+    private final Executor executor;
+
+    private final SecretKey cek;
+
+    private final byte[] iv;
+
+    private final int chunkSize;
+
+    // number of chunks processed at once, one per processor when running on an executor
+    private final int batchSize;
+
+    ChunkedResourceCipher(SpxpCryptoEngine engine, Executor executor, SecretKey cek, byte[] iv, int chunkSize) {
+        this.engine = engine;
+        this.executor = executor;
+        this.cek = cek;
+        this.iv = iv;
+        this.chunkSize = chunkSize;
+        this.batchSize = executor != null ? Runtime.getRuntime().availableProcessors() : 1;
+    }
+
+    static byte[] chunkNonce(byte[] iv, long index) {
+        byte[] result = iv.clone();
+        int n = result.length;
+        result[n - 4] ^= (byte) (index >>> 24);
+        result[n - 3] ^= (byte) (index >>> 16);
+        result[n - 2] ^= (byte) (index >>> 8);
+        result[n - 1] ^= (byte) index;
+        return result;
+    }
+
+    void encrypt(InputStream src, OutputStream dest) throws IOException, GeneralSecurityException {
+        process(Cipher.ENCRYPT_MODE, src, dest);
+    }
+
+    void decrypt(InputStream src, OutputStream dest) throws IOException, GeneralSecurityException {
+        process(Cipher.DECRYPT_MODE, src, dest);
+    }
+
+    // encrypts chunk by chunk while the returned stream is being read
+    InputStream openEncryptingStream(InputStream src) {
+        return new ChunkInputStream(Cipher.ENCRYPT_MODE, src);
+    }
+
+    // decrypts chunk by chunk while the returned stream is being read. The plain text of a
+    // chunk is only released once that chunk has been authenticated
+    InputStream openDecryptingStream(InputStream src) {
+        return new ChunkInputStream(Cipher.DECRYPT_MODE, src);
+    }
+
+    // chunk by chunk encryption or decryption for AsyncResourcePump
+    AsyncResourcePump.Transform newTransform(int mode) {
+        return new ChunkTransform(mode);
+    }
+
+    // number of chunks in an encrypted resource of the given size
+    long getChunkCount(long encryptedSize) throws IOException {
+        long encryptedChunkSize = chunkSize + TAG_SIZE;
+        long result = encryptedSize / encryptedChunkSize;
+        long remainder = encryptedSize % encryptedChunkSize;
+        if(remainder > 0) {
+            if(remainder < TAG_SIZE) {
+                throw new IOException("Truncated resource");
+            }
+            result++;
+        }
+        if(result == 0) {
+            throw new IOException("Truncated resource");
+        }
+        return result;
+    }
+
+    long getDecryptedSize(long encryptedSize) throws IOException {
+        return encryptedSize - getChunkCount(encryptedSize) * TAG_SIZE;
+    }
+
+    // decrypts plain text bytes [offset, offset+length) by reading and authenticating only
+    // the chunks covering this range
+    void decryptRange(SeekableByteChannel src, long offset, long length, OutputStream dest) throws IOException, GeneralSecurityException {
+        long encryptedSize = src.size();
+        long chunkCount = getChunkCount(encryptedSize);
+        long decryptedSize = encryptedSize - chunkCount * TAG_SIZE;
+        if(offset < 0 || length < 0 || offset > decryptedSize || length > decryptedSize - offset) {
+            throw new IllegalArgumentException("Range " + offset + "+" + length + " outside of resource size " + decryptedSize);
+        }
+        if(length == 0) {
+            return;
+        }
+        int encryptedChunkSize = chunkSize + TAG_SIZE;
+        byte[] in = new byte[encryptedChunkSize];
+        byte[] out = new byte[chunkSize];
+        long end = offset + length;
+        for(long index = offset / chunkSize; index * chunkSize < end; index++) {
+            long position = index * encryptedChunkSize;
+            int len = (int) Math.min(encryptedChunkSize, encryptedSize - position);
+            readFully(src, position, in, len);
+            int decrypted = processChunk(Cipher.DECRYPT_MODE, index, index == chunkCount - 1, in, 0, len, out, 0);
+            long chunkStart = index * chunkSize;
+            int from = (int) Math.max(0, offset - chunkStart);
+            int to = (int) Math.min(decrypted, end - chunkStart);
+            dest.write(out, from, to - from);
+        }
+    }
+
+    private static void readFully(SeekableByteChannel src, long position, byte[] buffer, int len) throws IOException {
+        src.position(position);
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+        while(bb.hasRemaining()) {
+            if(src.read(bb) < 0) {
+                throw new IOException("Unexpected end of resource");
+            }
+        }
+    }
+
+    private int processChunk(int mode, long index, boolean last, byte[] src, int srcOff, int len, byte[] dest, int destOff) throws GeneralSecurityException {
+        Cipher c = engine.acquireCipher();
+        try {
+            c.init(mode, cek, new GCMParameterSpec(TAG_SIZE * 8, chunkNonce(iv, index)));
+            c.updateAAD(last ? AAD_FINAL : AAD_NOT_FINAL);
+            return c.doFinal(src, srcOff, len, dest, destOff);
+        } finally {
+            engine.releaseCipher(c);
+        }
+    }
+
+    private void process(final int mode, InputStream src, OutputStream dest) throws IOException, GeneralSecurityException {
+        boolean encrypt = mode == Cipher.ENCRYPT_MODE;
+        int inSize = encrypt ? chunkSize : chunkSize + TAG_SIZE;
+        int outSize = encrypt ? chunkSize + TAG_SIZE : chunkSize;
+        // one more input buffer than the batch, to look ahead for the last chunk
+        final byte[][] in = new byte[batchSize + 1][inSize];
+        final byte[][] out = new byte[batchSize][outSize];
+        final int[] inLength = new int[batchSize];
+        final int[] outLength = new int[batchSize];
+        final boolean[] last = new boolean[batchSize];
+        int base = 0;
+        int aheadLength = readFully(src, in[0]);
+        long index = 0;
+        boolean finished = false;
+        while(!finished) {
+            // collect the next batch of chunks
+            int count = 0;
+            while(count < batchSize && !finished) {
+                int slot = (base + count) % in.length;
+                int length = aheadLength;
+                if(length < inSize) {
+                    finished = true;
+                } else {
+                    aheadLength = readFully(src, in[(slot + 1) % in.length]);
+                    finished = aheadLength == 0;
+                }
+                if(!encrypt && length < TAG_SIZE) {
+                    throw new IOException("Truncated resource");
+                }
+                if(index + count >= MAX_CHUNKS) {
+                    throw new IOException("Too many chunks");
+                }
+                inLength[count] = length;
+                last[count] = finished;
+                count++;
+            }
+            // process them, the first one on the calling thread
+            final int batchBase = base;
+            final long batchIndex = index;
+            List<CompletableFuture<Void>> futures = new ArrayList<>(count - 1);
+            for(int i = 1; i < count; i++) {
+                final int j = i;
+                futures.add(CompletableFuture.runAsync(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            outLength[j] = processChunk(mode, batchIndex + j, last[j], in[(batchBase + j) % in.length], 0, inLength[j], out[j], 0);
+                        } catch(GeneralSecurityException e) {
+                            throw new CompletionException(e);
+                        }
+                    }
+                }, executor));
+            }
+            outLength[0] = processChunk(mode, batchIndex, last[0], in[batchBase], 0, inLength[0], out[0], 0);
+            join(futures);
+            // write them in order
+            for(int i = 0; i < count; i++) {
+                dest.write(out[i], 0, outLength[i]);
+            }
+            base = (base + count) % in.length;
+            index += count;
+        }
+    }
+
+    private final class ChunkInputStream extends InputStream {
+
+        private final int mode;
+
+        private final InputStream src;
+
+        private byte[] current;
+
+        // the next chunk is read ahead to know whether the current one is the last
+        private byte[] ahead;
+
+        private int aheadLength = -1;
+
+        private final byte[] output;
+
+        private int outputPos = 0;
+
+        private int outputLength = 0;
+
+        private long index = 0;
+
+        private boolean finished = false;
+
+        private IOException failure = null;
+
+        private ChunkInputStream(int mode, InputStream src) {
+            boolean encrypt = mode == Cipher.ENCRYPT_MODE;
+            this.mode = mode;
+            this.src = src;
+            this.current = new byte[encrypt ? chunkSize : chunkSize + TAG_SIZE];
+            this.ahead = new byte[current.length];
+            this.output = new byte[encrypt ? chunkSize + TAG_SIZE : chunkSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(outputPos >= outputLength && !fill()) {
+                return -1;
+            }
+            return output[outputPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if(len == 0) {
+                return 0;
+            }
+            if(outputPos >= outputLength && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, outputLength - outputPos);
+            System.arraycopy(output, outputPos, b, off, n);
+            outputPos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped chunks are still processed, a chunk can only be left out by
+            // decryptRange()
+            long result = 0;
+            while(result < n && (outputPos < outputLength || fill())) {
+                int step = (int) Math.min(n - result, outputLength - outputPos);
+                outputPos += step;
+                result += step;
+            }
+            return result;
+        }
+
+        @Override
+        public int available() {
+            return outputLength - outputPos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            src.close();
+        }
+
+        // processes the next chunk, returns false at the end of the resource. Once a chunk
+        // has failed, the stream keeps failing instead of skipping it
+        private boolean fill() throws IOException {
+            if(failure != null) {
+                throw failure;
+            }
+            try {
+                return nextChunk();
+            } catch(IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        private boolean nextChunk() throws IOException {
+            while(!finished) {
+                if(aheadLength < 0) {
+                    aheadLength = readFully(src, ahead);
+                }
+                byte[] swap = current;
+                current = ahead;
+                ahead = swap;
+                int length = aheadLength;
+                boolean last;
+                if(length < current.length) {
+                    last = true;
+                } else {
+                    aheadLength = readFully(src, ahead);
+                    last = aheadLength == 0;
+                }
+                if(mode == Cipher.DECRYPT_MODE && length < TAG_SIZE) {
+                    throw new IOException("Truncated resource");
+                }
+                if(index >= MAX_CHUNKS) {
+                    throw new IOException("Too many chunks");
+                }
+                try {
+                    outputLength = processChunk(mode, index, last, current, 0, length, output, 0);
+                } catch(GeneralSecurityException e) {
+                    throw new IOException(mode == Cipher.DECRYPT_MODE ? "Resource authentication failed" : "Resource encryption failed", e);
+                }
+                outputPos = 0;
+                index++;
+                finished = last;
+                if(outputLength > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    // collects the input into chunks. A full chunk is only processed once more input
+    // arrives, because the last chunk is only known in doFinal()
+    private final class ChunkTransform implements AsyncResourcePump.Transform {
+
+        private final int mode;
+
+        private final byte[] pending;
+
+        private int pendingLength = 0;
+
+        private final int outSize;
+
+        private long index = 0;
+
+        private ChunkTransform(int mode) {
+            boolean encrypt = mode == Cipher.ENCRYPT_MODE;
+            this.mode = mode;
+            this.pending = new byte[encrypt ? chunkSize : chunkSize + TAG_SIZE];
+            this.outSize = encrypt ? chunkSize + TAG_SIZE : chunkSize;
+        }
+
+        @Override
+        public int getUpdateOutputSize(int len) {
+            return (int) Math.min(Integer.MAX_VALUE, (long) ((pendingLength + len) / pending.length) * outSize);
+        }
+
+        @Override
+        public int update(byte[] in, int off, int len, byte[] out, int outOff) throws IOException, GeneralSecurityException {
+            int result = 0;
+            while(len > 0) {
+                if(pendingLength == pending.length) {
+                    result += processPending(false, out, outOff + result);
+                }
+                int n = Math.min(len, pending.length - pendingLength);
+                System.arraycopy(in, off, pending, pendingLength, n);
+                pendingLength += n;
+                off += n;
+                len -= n;
+            }
+            return result;
+        }
+
+        @Override
+        public int getFinalOutputSize() {
+            return outSize;
+        }
+
+        @Override
+        public int doFinal(byte[] out, int outOff) throws IOException, GeneralSecurityException {
+            if(mode == Cipher.DECRYPT_MODE && pendingLength < TAG_SIZE) {
+                throw new IOException("Truncated resource");
+            }
+            return processPending(true, out, outOff);
+        }
+
+        private int processPending(boolean last, byte[] out, int outOff) throws IOException, GeneralSecurityException {
+            if(index >= MAX_CHUNKS) {
+                throw new IOException("Too many chunks");
+            }
+            int result = processChunk(mode, index, last, pending, 0, pendingLength, out, outOff);
+            index++;
+            pendingLength = 0;
+            return result;
+        }
+
+        @Override
+        public byte[] getTag() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+
+    }
+
+    static void join(List<CompletableFuture<Void>> futures) throws GeneralSecurityException {
+        if(futures.isEmpty()) {
+            return;
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // reads until buffer is full or the end of the stream has been reached
+    static int readFully(InputStream src, byte[] buffer) throws IOException {
+        int result = 0;
+        while(result < buffer.length) {
+            int n = src.read(buffer, result, buffer.length - result);
+            if(n < 0) {
+                break;
+            }
+            result += n;
+        }
+        return result;
+    }
+
+}
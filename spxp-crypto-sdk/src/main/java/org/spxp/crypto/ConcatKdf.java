@@ -0,0 +1,102 @@
+package org.spxp.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Concat KDF with SHA-256 as used by JWE ECDH-ES (RFC 7518, section 4.6.2). The
+// OtherInfo block only depends on the algorithm, apu, apv and the key length, so it is
+// built once by otherInfo() and the OtherInfo of A256GCM without apu and apv is a
+// constant. Every thread keeps its own digest and scratch block, so deriving a key into
+// a buffer of the caller does not allocate.
+final class ConcatKdf {
+
+    private static final int HASH_SIZE = 32;
+
+    // OtherInfo of the CEK of ECDH-ES with A256GCM, without apu and apv
+    static final byte[] A256GCM_OTHER_INFO = otherInfo("A256GCM", new byte[0], new byte[0], 256);
+
+    private static final ThreadLocal<ConcatKdf> INSTANCE = new ThreadLocal<ConcatKdf>() {
+        @Override
+        protected ConcatKdf initialValue() {
+            return new ConcatKdf();
+        }
+    };
+
+    private final MessageDigest digest;
+
+    private final byte[] block = new byte[HASH_SIZE];
+
+    private final byte[] counterBytes = new byte[4];
+
+    private ConcatKdf() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static byte[] otherInfo(String algoName, byte[] apu, byte[] apv, int keyBitLen) {
+        byte[] algoNameBytes = algoName.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer otherInfoBuffer = ByteBuffer.allocate(4 + algoNameBytes.length + 4 + apu.length + 4 + apv.length + 4);
+        otherInfoBuffer.putInt(algoNameBytes.length);
+        otherInfoBuffer.put(algoNameBytes);
+        otherInfoBuffer.putInt(apu.length);
+        otherInfoBuffer.put(apu);
+        otherInfoBuffer.putInt(apv.length);
+        otherInfoBuffer.put(apv);
+        otherInfoBuffer.putInt(keyBitLen);
+        return otherInfoBuffer.array();
+    }
+
+    // derives a key of any length, using as many rounds as needed
+    static byte[] deriveKey(byte[] z, String algoName, byte[] apu, byte[] apv, int keyBitLen) throws DigestException {
+        if(keyBitLen <= 0 || keyBitLen % 8 != 0) {
+            throw new IllegalArgumentException("key length must be a positive multiple of 8 bits");
+        }
+        byte[] result = new byte[keyBitLen / 8];
+        deriveKey(z, otherInfo(algoName, apu, apv, keyBitLen), result, 0, result.length);
+        return result;
+    }
+
+    // writes keyLen bytes derived from the shared secret z to out[outOff]. otherInfo
+    // has to state the same key length in bits
+    static void deriveKey(byte[] z, byte[] otherInfo, byte[] out, int outOff, int keyLen) throws DigestException {
+        INSTANCE.get().derive(z, otherInfo, out, outOff, keyLen);
+    }
+
+    private void derive(byte[] z, byte[] otherInfo, byte[] out, int outOff, int keyLen) throws DigestException {
+        int counter = 1;
+        int offset = 0;
+        try {
+            while(offset < keyLen) {
+                counterBytes[0] = (byte) (counter >>> 24);
+                counterBytes[1] = (byte) (counter >>> 16);
+                counterBytes[2] = (byte) (counter >>> 8);
+                counterBytes[3] = (byte) counter;
+                digest.update(counterBytes, 0, 4);
+                digest.update(z);
+                digest.update(otherInfo);
+                int n = Math.min(HASH_SIZE, keyLen - offset);
+                if(n == HASH_SIZE) {
+                    digest.digest(out, outOff + offset, HASH_SIZE);
+                } else {
+                    // the last round only contributes a part of its hash
+                    digest.digest(block, 0, HASH_SIZE);
+                    System.arraycopy(block, 0, out, outOff + offset, n);
+                }
+                offset += n;
+                counter++;
+            }
+        } finally {
+            digest.reset();
+            for(int i = 0; i < HASH_SIZE; i++) {
+                block[i] = 0;
+            }
+        }
+    }
+
+}
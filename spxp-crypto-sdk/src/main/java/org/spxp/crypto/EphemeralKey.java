@@ -0,0 +1,25 @@
+package org.spxp.crypto;
+
+import org.json.JSONObject;
+
+// an ephemeral key pair for ECDH-ES and the "epk" member announcing it
+final class EphemeralKey {
+
+    private final SpxpConnectKeyPair keyPair;
+
+    private final JSONObject jwk;
+
+    EphemeralKey(SpxpConnectKeyPair keyPair) {
+        this.keyPair = keyPair;
+        this.jwk = SpxpCryptoToolsV04.getPublicJWK(keyPair.extractConnectPublicKey());
+    }
+
+    SpxpConnectKeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    JSONObject getPublicJWK() {
+        return jwk;
+    }
+
+}
@@ -0,0 +1,140 @@
+package org.spxp.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+// Decrypts a resource in the single AES-GCM stream format while it is being read.
+// JCE providers like SunJCE withhold all plain text of a GCM decryption until the tag
+// has been verified, so this uses the streaming GCM implementation of BouncyCastle.
+// The plain text is therefore released before it has been authenticated. The tag is
+// checked at the end of the stream, and a mismatch fails the last read() with an
+// IOException. Consumers must discard everything they have read in that case.
+class GcmDecryptingInputStream extends InputStream {
+
+    private final InputStream in;
+
+    private final GCMBlockCipher cipher;
+
+    private final byte[] tag;
+
+    private final byte[] inBuffer;
+
+    private byte[] outBuffer;
+
+    private int outPos = 0;
+
+    private int outLength = 0;
+
+    private boolean finished = false;
+
+    private IOException failure = null;
+
+    GcmDecryptingInputStream(InputStream in, byte[] key, byte[] iv, byte[] tag, int bufferSize) {
+        this.in = in;
+        this.tag = tag;
+        this.cipher = new GCMBlockCipher(new AESEngine());
+        this.cipher.init(false, new AEADParameters(new KeyParameter(key), tag.length * 8, iv));
+        this.inBuffer = new byte[bufferSize];
+        this.outBuffer = new byte[cipher.getUpdateOutputSize(bufferSize)];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n;
+        while((n = read(b, 0, 1)) == 0) {
+            // nothing released yet
+        }
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if(len == 0) {
+            return 0;
+        }
+        while(outPos >= outLength) {
+            if(finished) {
+                return -1;
+            }
+            fill();
+        }
+        int n = Math.min(len, outLength - outPos);
+        System.arraycopy(outBuffer, outPos, b, off, n);
+        outPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // the skipped cipher text still has to go through the GHASH
+        long result = 0;
+        while(result < n) {
+            if(outPos >= outLength) {
+                if(finished) {
+                    break;
+                }
+                fill();
+                continue;
+            }
+            int step = (int) Math.min(n - result, outLength - outPos);
+            outPos += step;
+            result += step;
+        }
+        return result;
+    }
+
+    @Override
+    public int available() {
+        return outLength - outPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void fill() throws IOException {
+        if(failure != null) {
+            throw failure;
+        }
+        outPos = 0;
+        int n = in.read(inBuffer);
+        if(n > 0) {
+            // the cipher holds back the last bytes of each update until the next one
+            int outSize = cipher.getUpdateOutputSize(n);
+            if(outBuffer.length < outSize) {
+                outBuffer = new byte[outSize];
+            }
+            outLength = cipher.processBytes(inBuffer, 0, n, outBuffer, 0);
+            return;
+        }
+        if(n == 0) {
+            outLength = 0;
+            return;
+        }
+        // end of the cipher text, the tag from the descriptor completes it
+        byte[] last = new byte[cipher.getOutputSize(tag.length)];
+        try {
+            int length = cipher.processBytes(tag, 0, tag.length, last, 0);
+            length += cipher.doFinal(last, length);
+            outBuffer = last;
+            outLength = length;
+            finished = true;
+        } catch(InvalidCipherTextException e) {
+            outLength = 0;
+            failure = new IOException("Resource authentication failed", e);
+            throw failure;
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+package org.spxp.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+// Encrypts a resource in the single AES-GCM stream format while it is being read. The
+// stream yields the cipher text without the tag, like encryptResource() writes it, and
+// the tag is available from getTag() once the end of the stream has been reached.
+// The cipher has been acquired from the engine and initialised for encryption, it is
+// handed back at the end of the stream or on close().
+class GcmEncryptingInputStream extends InputStream {
+
+    private final InputStream in;
+
+    private final SpxpCryptoEngine engine;
+
+    private Cipher cipher;
+
+    private final int tagSize;
+
+    private final byte[] inBuffer;
+
+    private byte[] outBuffer;
+
+    private int outPos = 0;
+
+    private int outLength = 0;
+
+    private byte[] tag = null;
+
+    private IOException failure = null;
+
+    GcmEncryptingInputStream(InputStream in, SpxpCryptoEngine engine, Cipher cipher, int tagSize, int bufferSize) {
+        this.in = in;
+        this.engine = engine;
+        this.cipher = cipher;
+        this.tagSize = tagSize;
+        this.inBuffer = new byte[bufferSize];
+        this.outBuffer = new byte[cipher.getOutputSize(bufferSize)];
+    }
+
+    // the tag of the cipher text, or null if the end of the stream has not been reached
+    byte[] getTag() {
+        return tag;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n;
+        while((n = read(b, 0, 1)) == 0) {
+            // nothing released yet
+        }
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if(len == 0) {
+            return 0;
+        }
+        while(outPos >= outLength) {
+            if(tag != null) {
+                return -1;
+            }
+            fill();
+        }
+        int n = Math.min(len, outLength - outPos);
+        System.arraycopy(outBuffer, outPos, b, off, n);
+        outPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // the skipped plain text still has to be encrypted to get the tag
+        long result = 0;
+        while(result < n) {
+            if(outPos >= outLength) {
+                if(tag != null) {
+                    break;
+                }
+                fill();
+                continue;
+            }
+            int step = (int) Math.min(n - result, outLength - outPos);
+            outPos += step;
+            result += step;
+        }
+        return result;
+    }
+
+    @Override
+    public int available() {
+        return outLength - outPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            releaseCipher();
+        }
+    }
+
+    private void fill() throws IOException {
+        if(failure != null) {
+            throw failure;
+        }
+        try {
+            outPos = 0;
+            int n = in.read(inBuffer);
+            if(n >= 0) {
+                int outSize = cipher.getOutputSize(n);
+                if(outBuffer.length < outSize) {
+                    outBuffer = new byte[outSize];
+                }
+                outLength = cipher.update(inBuffer, 0, n, outBuffer, 0);
+                return;
+            }
+            // end of the plain text, the tag is split off the final block
+            byte[] last = cipher.doFinal();
+            releaseCipher();
+            outBuffer = last;
+            outLength = last.length - tagSize;
+            tag = Arrays.copyOfRange(last, outLength, last.length);
+        } catch(GeneralSecurityException e) {
+            outLength = 0;
+            releaseCipher();
+            failure = new IOException("Resource encryption failed", e);
+            throw failure;
+        } catch(IOException e) {
+            outLength = 0;
+            releaseCipher();
+            failure = e;
+            throw e;
+        }
+    }
+
+    private void releaseCipher() {
+        if(cipher != null) {
+            engine.releaseCipher(cipher);
+            cipher = null;
+        }
+    }
+
+}
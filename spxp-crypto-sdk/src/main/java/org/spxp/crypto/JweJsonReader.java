@@ -0,0 +1,290 @@
+package org.spxp.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+
+// Minimal pull parser for the JWE JSON serialization. Members are visited in document
+// order without building a DOM, unknown values are skipped without being materialised
+// and Base64url string values can be decoded straight into an OutputStream
+final class JweJsonReader {
+
+    private static final int MAX_DEPTH = 64;
+
+    private final Reader in;
+
+    private final char[] buffer;
+
+    private int pos = 0;
+
+    private int limit = 0;
+
+    // per open object or array: true until the first element has been read
+    private final boolean[] first = new boolean[MAX_DEPTH];
+
+    private int depth = 0;
+
+    JweJsonReader(Reader in, int bufferSize) {
+        this.in = in;
+        this.buffer = new char[Math.max(16, bufferSize)];
+    }
+
+    private int read() throws IOException {
+        if(pos == limit) {
+            if(!fill()) {
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = in.read(buffer, 0, buffer.length);
+        } while(n == 0);
+        if(n < 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        while(true) {
+            if(pos == limit && !fill()) {
+                return -1;
+            }
+            char c = buffer[pos];
+            if(c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+            pos++;
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = peekNonWhitespace();
+        if(c != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+        pos++;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Invalid JSON: " + message);
+    }
+
+    private void push() throws IOException {
+        if(depth == MAX_DEPTH) {
+            throw syntaxError("Nesting too deep");
+        }
+        first[depth++] = true;
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+        push();
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+        depth--;
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+        push();
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+        depth--;
+    }
+
+    // true if the current object or array has another element. Consumes the separating
+    // ',' so that the element itself can be read next
+    boolean hasNext() throws IOException {
+        int c = peekNonWhitespace();
+        if(c == '}' || c == ']') {
+            return false;
+        }
+        if(first[depth - 1]) {
+            first[depth - 1] = false;
+        } else {
+            expect(',');
+            c = peekNonWhitespace();
+            if(c == '}' || c == ']') {
+                throw syntaxError("Trailing comma");
+            }
+        }
+        return true;
+    }
+
+    boolean isNextObject() throws IOException {
+        return peekNonWhitespace() == '{';
+    }
+
+    boolean isNextString() throws IOException {
+        return peekNonWhitespace() == '"';
+    }
+
+    String nextName() throws IOException {
+        String result = nextString();
+        expect(':');
+        return result;
+    }
+
+    // like nextName() without materialising the name
+    private void skipName() throws IOException {
+        expect('"');
+        while(nextStringChar() >= 0) {
+            // skip
+        }
+        expect(':');
+    }
+
+    String nextString() throws IOException {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while((c = nextStringChar()) >= 0) {
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    // next character of the string value the reader is in, with escapes resolved,
+    // or -1 after the closing quote has been consumed
+    private int nextStringChar() throws IOException {
+        int c = read();
+        if(c == '"') {
+            return -1;
+        }
+        if(c < 0) {
+            throw syntaxError("Unterminated string");
+        }
+        if(c != '\\') {
+            return c;
+        }
+        c = read();
+        switch(c) {
+        case '"':
+        case '\\':
+        case '/':
+            return c;
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int result = 0;
+            for(int i = 0; i < 4; i++) {
+                int digit = Character.digit(read(), 16);
+                if(digit < 0) {
+                    throw syntaxError("Invalid unicode escape");
+                }
+                result = (result << 4) | digit;
+            }
+            return result;
+        default:
+            throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    // decodes a Base64url string value into out, chunk by chunk, using scratch as
+    // intermediate buffer. Trailing padding is accepted
+    void nextBase64(OutputStream out, byte[] scratch) throws IOException {
+        expect('"');
+        int chunkSize = scratch.length - scratch.length % 3;
+        int n = 0;
+        int bits = 0;
+        int sextets = 0;
+        int padding = 0;
+        int c;
+        while((c = nextStringChar()) >= 0) {
+            if(c == '=') {
+                padding++;
+                continue;
+            }
+            if(padding > 0) {
+                throw new IllegalArgumentException("Illegal Base64url padding");
+            }
+            bits = (bits << 6) | Base64Url.sextet((char) c);
+            if(++sextets == 4) {
+                scratch[n++] = (byte) (bits >>> 16);
+                scratch[n++] = (byte) (bits >>> 8);
+                scratch[n++] = (byte) bits;
+                bits = 0;
+                sextets = 0;
+                if(n == chunkSize) {
+                    out.write(scratch, 0, n);
+                    n = 0;
+                }
+            }
+        }
+        if(sextets == 1 || padding > 2 || (padding > 0 && sextets + padding != 4)) {
+            throw new IllegalArgumentException("Invalid Base64url length");
+        }
+        if(sextets == 2) {
+            scratch[n++] = (byte) (bits >>> 4);
+        } else if(sextets == 3) {
+            scratch[n++] = (byte) (bits >>> 10);
+            scratch[n++] = (byte) (bits >>> 2);
+        }
+        if(n > 0) {
+            out.write(scratch, 0, n);
+        }
+    }
+
+    // skips the next value of any type without materialising it. Objects and arrays are
+    // still checked for separators and trailing commas
+    void skipValue() throws IOException {
+        int c = peekNonWhitespace();
+        if(c == '"') {
+            pos++;
+            while(nextStringChar() >= 0) {
+                // skip
+            }
+        } else if(c == '{') {
+            beginObject();
+            while(hasNext()) {
+                skipName();
+                skipValue();
+            }
+            endObject();
+        } else if(c == '[') {
+            beginArray();
+            while(hasNext()) {
+                skipValue();
+            }
+            endArray();
+        } else if(c == '-' || (c >= '0' && c <= '9') || c == 't' || c == 'f' || c == 'n') {
+            // number or literal
+            while(pos < limit || fill()) {
+                c = buffer[pos];
+                if(c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                    break;
+                }
+                pos++;
+            }
+        } else {
+            throw syntaxError("Unexpected character");
+        }
+    }
+
+    // makes sure nothing but whitespace follows the top level value
+    void endDocument() throws IOException {
+        if(peekNonWhitespace() >= 0) {
+            throw syntaxError("Unexpected content after end of document");
+        }
+    }
+
+}
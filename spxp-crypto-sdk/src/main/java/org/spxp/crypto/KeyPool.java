@@ -0,0 +1,89 @@
+package org.spxp.crypto;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Pool of pre-generated keys, like ephemeral or new profile key pairs. Taking a key never
+// blocks: once the pool runs down to its low watermark, a refill is started in the
+// background, and if the pool is empty the key is generated on the calling thread. Every
+// key is handed out exactly once.
+// The refill runs on the executor if there is one, otherwise on a daemon thread of its
+// own that ends as soon as the pool is full.
+final class KeyPool<T> {
+
+    interface Generator<T> {
+
+        T generate();
+
+    }
+
+    private final Generator<T> generator;
+
+    private final Executor executor;
+
+    private final String threadName;
+
+    private final ArrayBlockingQueue<T> keys;
+
+    private final int lowWatermark;
+
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while(keys.remainingCapacity() > 0) {
+                    keys.offer(generator.generate());
+                }
+            } finally {
+                refilling.set(false);
+            }
+        }
+    };
+
+    KeyPool(Generator<T> generator, int size, int lowWatermark, Executor executor, String threadName) {
+        if(lowWatermark < 0 || lowWatermark >= size) {
+            throw new IllegalArgumentException("lowWatermark must be between 0 and size - 1");
+        }
+        this.generator = generator;
+        this.executor = executor;
+        this.threadName = threadName;
+        this.keys = new ArrayBlockingQueue<>(size);
+        this.lowWatermark = lowWatermark;
+        startRefill();
+    }
+
+    T take() {
+        T result = keys.poll();
+        if(keys.size() <= lowWatermark) {
+            startRefill();
+        }
+        return result != null ? result : generator.generate();
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    private void startRefill() {
+        if(!refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if(executor != null) {
+                executor.execute(refill);
+            } else {
+                Thread thread = new Thread(refill, threadName);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch(RejectedExecutionException e) {
+            // keys are generated on the calling thread until the next attempt succeeds
+            refilling.set(false);
+        }
+    }
+
+}
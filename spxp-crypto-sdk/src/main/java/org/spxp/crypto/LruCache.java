@@ -0,0 +1,241 @@
+package org.spxp.crypto;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded, thread safe least recently used cache. Values leaving the cache, either by
+// eviction, expiry, removal or replacement, are handed to the RemovalListener outside of
+// the lock.
+// With a time to live, entries expire that long after they have been put, regardless of
+// how often they are used. Expired entries are dropped by get(), and put() trims them
+// from the least recently used end until it meets one that has not expired, so it stays
+// cheap for large caches. purgeExpired() sweeps the whole cache.
+final class LruCache<K, V> {
+
+    interface RemovalListener<V> {
+
+        void removed(V value);
+
+    }
+
+    private final int maxSize;
+
+    private final RemovalListener<V> removalListener;
+
+    private final long ttlNanos;
+
+    private final LinkedHashMap<K, Entry<V>> map;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    private static final class Entry<V> {
+
+        private final V value;
+
+        private final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    LruCache(int maxSize, RemovalListener<V> removalListener) {
+        this(maxSize, 0, removalListener);
+    }
+
+    // ttlNanos of 0 keeps entries until they are evicted
+    LruCache(int maxSize, long ttlNanos, RemovalListener<V> removalListener) {
+        if(maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if(ttlNanos < 0) {
+            throw new IllegalArgumentException("ttl must not be negative");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        this.removalListener = removalListener;
+        this.map = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    V get(K key) {
+        Entry<V> result;
+        boolean expired = false;
+        synchronized(map) {
+            result = map.get(key);
+            if(result != null && isExpired(result, System.nanoTime())) {
+                map.remove(key);
+                expired = true;
+            }
+        }
+        if(expired) {
+            expirations.incrementAndGet();
+            notifyRemoved(result.value);
+            result = null;
+        }
+        if(result != null) {
+            hits.incrementAndGet();
+            return result.value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(K key, V value) {
+        Entry<V> replaced;
+        List<V> expired;
+        List<V> evicted = null;
+        synchronized(map) {
+            expired = removeExpired(false);
+            replaced = map.put(key, new Entry<>(value, ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0));
+            if(map.size() > maxSize) {
+                evicted = new ArrayList<>(1);
+                Iterator<Entry<V>> it = map.values().iterator();
+                while(map.size() > maxSize) {
+                    evicted.add(it.next().value);
+                    it.remove();
+                }
+            }
+        }
+        if(replaced != null && replaced.value != value) {
+            notifyRemoved(replaced.value);
+        }
+        notifyExpired(expired);
+        if(evicted != null) {
+            evictions.addAndGet(evicted.size());
+            for(V v : evicted) {
+                notifyRemoved(v);
+            }
+        }
+    }
+
+    // drops all expired entries now
+    void purgeExpired() {
+        List<V> expired;
+        synchronized(map) {
+            expired = removeExpired(true);
+        }
+        notifyExpired(expired);
+    }
+
+    // removes key only if it is still mapped to value
+    boolean remove(K key, V value) {
+        boolean removed = false;
+        synchronized(map) {
+            Entry<V> current = map.get(key);
+            if(current != null && current.value == value) {
+                map.remove(key);
+                removed = true;
+            }
+        }
+        if(removed) {
+            notifyRemoved(value);
+        }
+        return removed;
+    }
+
+    V remove(K key) {
+        Entry<V> removed;
+        synchronized(map) {
+            removed = map.remove(key);
+        }
+        if(removed != null) {
+            notifyRemoved(removed.value);
+            return removed.value;
+        }
+        return null;
+    }
+
+    void clear() {
+        List<V> removed = new ArrayList<>();
+        synchronized(map) {
+            for(Entry<V> entry : map.values()) {
+                removed.add(entry.value);
+            }
+            map.clear();
+        }
+        for(V v : removed) {
+            notifyRemoved(v);
+        }
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return ttlNanos > 0 && now - entry.expiresAt >= 0;
+    }
+
+    // has to be called while holding the lock, returns null if nothing expired. Unless all
+    // is set, only the expired entries at the least recently used end are removed
+    private List<V> removeExpired(boolean all) {
+        if(ttlNanos == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        List<V> result = null;
+        Iterator<Entry<V>> it = map.values().iterator();
+        while(it.hasNext()) {
+            Entry<V> entry = it.next();
+            if(isExpired(entry, now)) {
+                if(result == null) {
+                    result = new ArrayList<>(1);
+                }
+                result.add(entry.value);
+                it.remove();
+            } else if(!all) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private void notifyExpired(List<V> expired) {
+        if(expired != null) {
+            expirations.addAndGet(expired.size());
+            for(V v : expired) {
+                notifyRemoved(v);
+            }
+        }
+    }
+
+    private void notifyRemoved(V value) {
+        if(removalListener != null) {
+            removalListener.removed(value);
+        }
+    }
+
+    int size() {
+        synchronized(map) {
+            return map.size();
+        }
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    long getExpirationCount() {
+        return expirations.get();
+    }
+
+}
@@ -32,6 +32,24 @@ public class RestrainLastNBytesOutputStream extends FilterOutputStream {
         }
     }
 
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(len < n) {
+            for(int i = 0; i < len; i++) {
+                write(b[off + i]);
+            }
+            return;
+        }
+        // everything restrained so far and all but the last n bytes of b are released
+        if(wrappedAround) {
+            out.write(ringBuffer, writePos, n - writePos);
+        }
+        out.write(ringBuffer, 0, writePos);
+        out.write(b, off, len - n);
+        System.arraycopy(b, off + len - n, ringBuffer, 0, n);
+        writePos = 0;
+        wrappedAround = true;
+    }
+
     public byte[] getRestrainedBytes() {
         if(wrappedAround) {
             byte[] result = new byte[n];
@@ -0,0 +1,49 @@
+package org.spxp.crypto;
+
+// Bounded LRU cache of certificate chains that have already been verified. The key is a
+// digest over the canonical form of the certificate including its signature, the public
+// key it has been verified against, the required AAD and the required permissions, so an
+// entry only matches the exact same check. Only successful verifications are cached.
+// Verification is a pure function of these inputs, so entries never become stale; call
+// invalidateAll() to bound how long an entry may be kept anyway.
+public class SpxpCertificateCache {
+
+    private final LruCache<String, Boolean> cache;
+
+    SpxpCertificateCache(int maxEntries) {
+        this.cache = new LruCache<>(maxEntries, null);
+    }
+
+    boolean isVerified(String key) {
+        return cache.get(key) != null;
+    }
+
+    void addVerified(String key) {
+        cache.put(key, Boolean.TRUE);
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+}
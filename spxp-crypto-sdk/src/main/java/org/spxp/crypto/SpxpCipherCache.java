@@ -0,0 +1,65 @@
+package org.spxp.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+public class SpxpCipherCache {
+
+    private final String transformation;
+
+    private final Provider provider;
+
+    // at most one idle Cipher per thread. A Cipher handed out by acquire() is owned
+    // exclusively by the caller until it is released, so nested or interleaved
+    // operations on the same thread simply get a fresh instance
+    private final ThreadLocal<Cipher[]> idleCipher = new ThreadLocal<Cipher[]>() {
+        @Override
+        protected Cipher[] initialValue() {
+            return new Cipher[1];
+        }
+    };
+
+    public SpxpCipherCache(String transformation) {
+        this(transformation, null);
+    }
+
+    public SpxpCipherCache(String transformation, Provider provider) {
+        if(transformation == null) {
+            throw new IllegalArgumentException("transformation must not be null");
+        }
+        this.transformation = transformation;
+        this.provider = provider;
+    }
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    // The returned Cipher is in an undefined state and must always be initialised
+    // with a fresh key / IV combination before use. GCM refuses to encrypt twice
+    // with the same key and IV, and re-initialising also resets any state left
+    // behind by a previous, possibly failed, operation.
+    public Cipher acquire() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher[] slot = idleCipher.get();
+        Cipher result = slot[0];
+        if(result != null) {
+            slot[0] = null;
+            return result;
+        }
+        return provider != null ? Cipher.getInstance(transformation, provider) : Cipher.getInstance(transformation);
+    }
+
+    public void release(Cipher cipher) {
+        if(cipher == null) {
+            return;
+        }
+        Cipher[] slot = idleCipher.get();
+        if(slot[0] == null) {
+            slot[0] = cipher;
+        }
+    }
+
+}
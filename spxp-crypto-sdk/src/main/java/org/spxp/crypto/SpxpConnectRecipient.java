@@ -0,0 +1,39 @@
+package org.spxp.crypto;
+
+import java.util.Arrays;
+
+// A connect public key prepared for encrypting many messages to it with
+// encryptAsymmetricJson(). The key is copied and checked once when the recipient is
+// created, so a key of small order, which would yield an all zero shared secret, is
+// rejected up front instead of failing every message.
+// Instances are immutable and can be shared across threads.
+public final class SpxpConnectRecipient {
+
+    private final String keyId;
+
+    private final byte[] publicKey;
+
+    SpxpConnectRecipient(SpxpConnectPublicKey publicKey) {
+        this.keyId = publicKey.getKeyId();
+        this.publicKey = Arrays.copyOf(publicKey.getPublicKey(), publicKey.getPublicKey().length);
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    // the decoded X25519 point
+    byte[] getPoint() {
+        return publicKey;
+    }
+
+    public SpxpConnectPublicKey getPublicKey() {
+        return new SpxpConnectPublicKey(keyId, Arrays.copyOf(publicKey, publicKey.length));
+    }
+
+    @Override
+    public String toString() {
+        return "SpxpConnectRecipient [keyId=" + keyId + ", publicKey=" + Arrays.toString(publicKey) + "]";
+    }
+
+}
@@ -0,0 +1,2665 @@
+package org.spxp.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Base64.Decoder;
+import java.util.Base64.Encoder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+public class SpxpCryptoEngine {
+
+    private static final int A256GCM_KEY_SIZE = 256;
+
+    private static final int A256GCM_IV_SIZE = 96;
+
+    private static final int A256GCM_AUTH_TAG_LENGTH = 128;
+
+    private static final String A256GCM_JCE_ALGO_SPEC = "AES/GCM/NoPadding";
+
+    private static final String AES_JCE_KEY_SPEC = "AES";
+
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    public static final int DEFAULT_PARALLEL_RECIPIENT_THRESHOLD = 64;
+
+    // recommended size of the certificate cache, see Builder.certificateCacheSize()
+    public static final int DEFAULT_CERTIFICATE_CACHE_SIZE = 256;
+
+    public static final long DEFAULT_DERIVED_KEY_CACHE_TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    // recommended chunk size for the chunked resource format
+    public static final int DEFAULT_RESOURCE_CHUNK_SIZE = 64 * 1024;
+
+    // resources in the single GCM stream format up to this size are decrypted in one
+    // direct buffer, see Builder.directResourceDecryptionLimit()
+    public static final int DEFAULT_DIRECT_RESOURCE_DECRYPTION_LIMIT = 8 * 1024 * 1024;
+
+    // upper limit for the chunk size announced by a resource descriptor
+    private static final int MAX_RESOURCE_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    // resource files are mapped in windows of at most this size
+    private static final int MAX_MAPPED_WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private static Encoder urlEncoder = Base64.getUrlEncoder().withoutPadding();
+
+    private static Decoder urlDecoder = Base64.getUrlDecoder();
+
+    private final SpxpRandomSource randomSource;
+
+    private final Provider cipherProvider;
+
+    private final int bufferSize;
+
+    private final SpxpCipherCache cipherCache;
+
+    private final SpxpCryptoMetrics metrics;
+
+    private final boolean jsonStreaming;
+
+    private final Executor executor;
+
+    private final int parallelRecipientThreshold;
+
+    private final SpxpKeyCache keyCache;
+
+    private final int resourceChunkSize;
+
+    private final int directResourceDecryptionLimit;
+
+    private final SpxpCertificateCache certificateCache;
+
+    private final KeyPool<EphemeralKey> ephemeralKeyPool;
+
+    private final KeyPool<SpxpProfileKeyPair> profileKeyPool;
+
+    private final KeyPool<SpxpConnectKeyPair> connectKeyPool;
+
+    private final SpxpDerivedKeyCache derivedKeyCache;
+
+    // reusable direct buffer of decryptResource() on files, at most
+    // directResourceDecryptionLimit plus the auth tag large
+    private final ThreadLocal<ByteBuffer> resourceDecryptionBuffer = new ThreadLocal<>();
+
+    // reusable buffer for the canonical form of signed objects
+    // digest of certificateCacheKey()
+    private static final ThreadLocal<MessageDigest> CERTIFICATE_CACHE_KEY_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    };
+
+    private final ThreadLocal<CanonicalJsonWriter> canonicalJsonWriter = new ThreadLocal<CanonicalJsonWriter>() {
+        @Override
+        protected CanonicalJsonWriter initialValue() {
+            return new CanonicalJsonWriter();
+        }
+    };
+
+    private SpxpCryptoEngine(Builder builder) {
+        this.randomSource = builder.randomSource != null ? builder.randomSource : sharedRandomSource(new SecureRandom());
+        this.cipherProvider = builder.cipherProvider;
+        this.bufferSize = builder.bufferSize;
+        this.cipherCache = builder.cipherCache ? new SpxpCipherCache(A256GCM_JCE_ALGO_SPEC, cipherProvider) : null;
+        this.metrics = builder.metrics;
+        this.jsonStreaming = builder.jsonStreaming;
+        this.executor = builder.executor;
+        this.parallelRecipientThreshold = builder.parallelRecipientThreshold;
+        this.resourceChunkSize = builder.resourceChunkSize;
+        this.directResourceDecryptionLimit = builder.directResourceDecryptionLimit;
+        this.keyCache = builder.keyCacheSize > 0 ? new SpxpKeyCache(builder.keyCacheSize, A256GCM_JCE_ALGO_SPEC, cipherProvider) : null;
+        this.certificateCache = builder.certificateCacheSize > 0 ? new SpxpCertificateCache(builder.certificateCacheSize) : null;
+        this.ephemeralKeyPool = builder.ephemeralKeyPoolSize > 0 ? new KeyPool<EphemeralKey>(new KeyPool.Generator<EphemeralKey>() {
+            @Override
+            public EphemeralKey generate() {
+                return new EphemeralKey(newConnectKeyPair());
+            }
+        }, builder.ephemeralKeyPoolSize, builder.ephemeralKeyPoolSize / 2, executor, "spxp-ephemeral-key-pool") : null;
+        int keyPairPoolLowWatermark = builder.keyPairPoolLowWatermark >= 0 ? builder.keyPairPoolLowWatermark : builder.keyPairPoolSize / 2;
+        this.profileKeyPool = builder.keyPairPoolSize > 0 ? new KeyPool<SpxpProfileKeyPair>(new KeyPool.Generator<SpxpProfileKeyPair>() {
+            @Override
+            public SpxpProfileKeyPair generate() {
+                return newProfileKeyPair();
+            }
+        }, builder.keyPairPoolSize, keyPairPoolLowWatermark, executor, "spxp-profile-key-pool") : null;
+        this.connectKeyPool = builder.keyPairPoolSize > 0 ? new KeyPool<SpxpConnectKeyPair>(new KeyPool.Generator<SpxpConnectKeyPair>() {
+            @Override
+            public SpxpConnectKeyPair generate() {
+                return newConnectKeyPair();
+            }
+        }, builder.keyPairPoolSize, keyPairPoolLowWatermark, executor, "spxp-connect-key-pool") : null;
+        this.derivedKeyCache = builder.derivedKeyCacheSize > 0 ? new SpxpDerivedKeyCache(builder.derivedKeyCacheSize, builder.derivedKeyCacheTtlNanos) : null;
+    }
+
+    private static SpxpRandomSource sharedRandomSource(final SecureRandom secureRandom) {
+        return new SpxpRandomSource() {
+            @Override
+            public SecureRandom current() {
+                return secureRandom;
+            }
+        };
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private SpxpRandomSource randomSource = null;
+
+        private Provider cipherProvider = null;
+
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+        private boolean cipherCache = true;
+
+        private SpxpCryptoMetrics metrics = SpxpCryptoMetrics.NONE;
+
+        private boolean jsonStreaming = true;
+
+        private Executor executor = null;
+
+        private int parallelRecipientThreshold = DEFAULT_PARALLEL_RECIPIENT_THRESHOLD;
+
+        private int keyCacheSize = 0;
+
+        private int resourceChunkSize = 0;
+
+        private int directResourceDecryptionLimit = DEFAULT_DIRECT_RESOURCE_DECRYPTION_LIMIT;
+
+        private int certificateCacheSize = 0;
+
+        private int ephemeralKeyPoolSize = 0;
+
+        private int keyPairPoolSize = 0;
+
+        private int keyPairPoolLowWatermark = -1;
+
+        private int derivedKeyCacheSize = 0;
+
+        private long derivedKeyCacheTtlNanos = DEFAULT_DERIVED_KEY_CACHE_TTL_NANOS;
+
+        private Builder() {
+        }
+
+        // source of all IVs, key ids and keys. Defaults to a new SecureRandom shared by
+        // all threads. A SpxpThreadLocalDrbg avoids contention on it with many threads
+        public Builder randomSource(SpxpRandomSource randomSource) {
+            this.randomSource = randomSource;
+            return this;
+        }
+
+        // draw all IVs, key ids and keys from a single SecureRandom shared by all threads
+        public Builder secureRandom(SecureRandom secureRandom) {
+            this.randomSource = secureRandom != null ? sharedRandomSource(secureRandom) : null;
+            return this;
+        }
+
+        // JCE provider for AES-GCM and AES key generation. Defaults to the highest priority provider
+        public Builder cipherProvider(Provider cipherProvider) {
+            this.cipherProvider = cipherProvider;
+            return this;
+        }
+
+        // size of the copy buffer used when encrypting and decrypting resources
+        public Builder bufferSize(int bufferSize) {
+            if(bufferSize <= 0) {
+                throw new IllegalArgumentException("bufferSize must be positive");
+            }
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        // reuse Cipher instances per thread instead of looking them up for every operation
+        public Builder cipherCache(boolean cipherCache) {
+            this.cipherCache = cipherCache;
+            return this;
+        }
+
+        public Builder metrics(SpxpCryptoMetrics metrics) {
+            if(metrics == null) {
+                throw new IllegalArgumentException("metrics must not be null");
+            }
+            this.metrics = metrics;
+            return this;
+        }
+
+        // decrypt JSON serialized JWEs with a streaming parser instead of building a
+        // JSONObject of the whole document
+        public Builder jsonStreaming(boolean jsonStreaming) {
+            this.jsonStreaming = jsonStreaming;
+            return this;
+        }
+
+        // executor for spreading independent work, like wrapping the CEK for many
+        // recipients, across threads. Everything runs on the calling thread if not set
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        // minimum number of recipients before the CEK is wrapped in parallel on the executor
+        public Builder parallelRecipientThreshold(int parallelRecipientThreshold) {
+            if(parallelRecipientThreshold <= 0) {
+                throw new IllegalArgumentException("parallelRecipientThreshold must be positive");
+            }
+            this.parallelRecipientThreshold = parallelRecipientThreshold;
+            return this;
+        }
+
+        // keep up to keyCacheSize long living keys, like round keys, ready to use by key id.
+        // Disabled by default, see SpxpKeyCache
+        public Builder keyCacheSize(int keyCacheSize) {
+            if(keyCacheSize < 0) {
+                throw new IllegalArgumentException("keyCacheSize must not be negative");
+            }
+            this.keyCacheSize = keyCacheSize;
+            return this;
+        }
+
+        // encrypt resources in the chunked format with chunks of the given size, see
+        // ChunkedResourceCipher. Chunks are encrypted and decrypted in parallel on the
+        // executor, if any. 0 selects the single GCM stream format, which is the default
+        // and understood by all SPXP clients. decryptResource() handles both formats
+        public Builder resourceChunkSize(int resourceChunkSize) {
+            if(resourceChunkSize < 0 || resourceChunkSize > MAX_RESOURCE_CHUNK_SIZE) {
+                throw new IllegalArgumentException("resourceChunkSize must be between 0 and " + MAX_RESOURCE_CHUNK_SIZE);
+            }
+            this.resourceChunkSize = resourceChunkSize;
+            return this;
+        }
+
+        // decryptResource() on files decrypts resources in the single GCM stream format up
+        // to this size with one doFinal() over a direct buffer, which is the fastest way
+        // through the JCE. Every thread keeps its buffer for the next call, so this is also
+        // the direct memory each decrypting thread holds on to. Larger resources are
+        // decrypted with the slower streaming GCM of BouncyCastle over mapped windows, or
+        // through update() of the cipherProvider, if one is set. 0 always streams
+        public Builder directResourceDecryptionLimit(int directResourceDecryptionLimit) {
+            if(directResourceDecryptionLimit < 0 || directResourceDecryptionLimit > Integer.MAX_VALUE - A256GCM_AUTH_TAG_LENGTH / 8) {
+                throw new IllegalArgumentException("directResourceDecryptionLimit must be between 0 and " + (Integer.MAX_VALUE - A256GCM_AUTH_TAG_LENGTH / 8));
+            }
+            this.directResourceDecryptionLimit = directResourceDecryptionLimit;
+            return this;
+        }
+
+        // keep up to certificateCacheSize verified certificate chains, so that objects signed
+        // with the same delegated key only verify its certificate once. Disabled by default,
+        // see SpxpCertificateCache
+        public Builder certificateCacheSize(int certificateCacheSize) {
+            if(certificateCacheSize < 0) {
+                throw new IllegalArgumentException("certificateCacheSize must not be negative");
+            }
+            this.certificateCacheSize = certificateCacheSize;
+            return this;
+        }
+
+        // keep up to ephemeralKeyPoolSize ephemeral key pairs for encryptAsymmetricJson()
+        // ready, generated in the background on the executor or a thread of its own.
+        // Disabled by default, see KeyPool
+        public Builder ephemeralKeyPoolSize(int ephemeralKeyPoolSize) {
+            if(ephemeralKeyPoolSize < 0) {
+                throw new IllegalArgumentException("ephemeralKeyPoolSize must not be negative");
+            }
+            this.ephemeralKeyPoolSize = ephemeralKeyPoolSize;
+            return this;
+        }
+
+        // keep up to keyPairPoolSize new profile and connect key pairs each ready for
+        // generateProfileKeyPair() and generateConnectKeyPair(), generated in the background
+        // on the executor or a thread of its own. Disabled by default, see KeyPool
+        public Builder keyPairPoolSize(int keyPairPoolSize) {
+            if(keyPairPoolSize < 0) {
+                throw new IllegalArgumentException("keyPairPoolSize must not be negative");
+            }
+            this.keyPairPoolSize = keyPairPoolSize;
+            return this;
+        }
+
+        // number of key pairs left in a pool at which it is refilled, half of the pool
+        // size by default
+        public Builder keyPairPoolLowWatermark(int keyPairPoolLowWatermark) {
+            if(keyPairPoolLowWatermark < 0) {
+                throw new IllegalArgumentException("keyPairPoolLowWatermark must not be negative");
+            }
+            this.keyPairPoolLowWatermark = keyPairPoolLowWatermark;
+            return this;
+        }
+
+        // keep up to derivedKeyCacheSize keys derived by decryptAsymmetricJson(), so that
+        // messages sharing an ephemeral key skip the key agreement. Disabled by default,
+        // see SpxpDerivedKeyCache
+        public Builder derivedKeyCacheSize(int derivedKeyCacheSize) {
+            if(derivedKeyCacheSize < 0) {
+                throw new IllegalArgumentException("derivedKeyCacheSize must not be negative");
+            }
+            this.derivedKeyCacheSize = derivedKeyCacheSize;
+            return this;
+        }
+
+        // time after which a derived key is dropped from the cache, 5 minutes by default
+        public Builder derivedKeyCacheTtl(long duration, TimeUnit unit) {
+            if(duration <= 0) {
+                throw new IllegalArgumentException("derivedKeyCacheTtl must be positive");
+            }
+            this.derivedKeyCacheTtlNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public SpxpCryptoEngine build() {
+            if(keyPairPoolSize > 0 && keyPairPoolLowWatermark >= keyPairPoolSize) {
+                throw new IllegalArgumentException("keyPairPoolLowWatermark must be less than keyPairPoolSize");
+            }
+            return new SpxpCryptoEngine(this);
+        }
+
+    }
+
+    private static String encodeBase64Url(byte[] data) {
+        return urlEncoder.encodeToString(data);
+    }
+
+    private static byte[] decodeBase64Url(String data) {
+        return urlDecoder.decode(data);
+    }
+
+    Cipher acquireCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if(cipherCache != null) {
+            return cipherCache.acquire();
+        }
+        return cipherProvider != null ? Cipher.getInstance(A256GCM_JCE_ALGO_SPEC, cipherProvider) : Cipher.getInstance(A256GCM_JCE_ALGO_SPEC);
+    }
+
+    void releaseCipher(Cipher c) {
+        if(cipherCache != null) {
+            cipherCache.release(c);
+        }
+    }
+
+    // the key cache of this engine, or null if disabled
+    public SpxpKeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    // the certificate cache of this engine, or null if disabled
+    public SpxpCertificateCache getCertificateCache() {
+        return certificateCache;
+    }
+
+    // the derived key cache of this engine, or null if disabled
+    public SpxpDerivedKeyCache getDerivedKeyCache() {
+        return derivedKeyCache;
+    }
+
+    private SpxpKeyCache.CachedKey acquireCachedKey(String keyId, byte[] keyBytes) {
+        return keyCache != null ? keyCache.acquire(keyId, keyBytes) : null;
+    }
+
+    private SpxpKeyCache.CachedKey acquireCachedKey(String keyId, SecretKey key) {
+        return keyCache != null ? keyCache.acquire(keyId, key) : null;
+    }
+
+    private Cipher acquireCipher(SpxpKeyCache.CachedKey cachedKey) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return cachedKey != null ? cachedKey.acquireCipher() : acquireCipher();
+    }
+
+    private void releaseCipher(SpxpKeyCache.CachedKey cachedKey, Cipher c) {
+        if(cachedKey != null) {
+            cachedKey.release(c);
+        } else {
+            releaseCipher(c);
+        }
+    }
+
+    private KeyGenerator newKeyGenerator() throws NoSuchAlgorithmException {
+        return cipherProvider != null ? KeyGenerator.getInstance(AES_JCE_KEY_SPEC, cipherProvider) : KeyGenerator.getInstance(AES_JCE_KEY_SPEC);
+    }
+
+    private void recordOperation(String operation, long startTime, boolean success) {
+        metrics.operationCompleted(operation, System.nanoTime() - startTime, success);
+    }
+
+    public String encryptSymmetricCompact(String payload, SpxpSymmetricKeySpec key) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            ByteBuffer compact = encryptSymmetricCompactInternal(ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8)), key, null);
+            String result = new String(compact.array(), StandardCharsets.US_ASCII);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("encryptSymmetricCompact", startTime, success);
+        }
+    }
+
+    public byte[] encryptSymmetricCompact(byte[] payload, SpxpSymmetricKeySpec key) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            byte[] result = encryptSymmetricCompactInternal(ByteBuffer.wrap(payload), key, null).array();
+            success = true;
+            return result;
+        } finally {
+            recordOperation("encryptSymmetricCompact", startTime, success);
+        }
+    }
+
+    // encrypts the remaining bytes of payload and writes the ASCII compact serialization
+    // to dest. Both buffers may be direct. Returns the number of bytes written to dest,
+    // see getEncryptedCompactLength() for the required space
+    public int encryptSymmetricCompact(ByteBuffer payload, SpxpSymmetricKeySpec key, ByteBuffer dest) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            int destStart = dest.position();
+            encryptSymmetricCompactInternal(payload, key, dest);
+            success = true;
+            return dest.position() - destStart;
+        } finally {
+            recordOperation("encryptSymmetricCompact", startTime, success);
+        }
+    }
+
+    public int getEncryptedCompactLength(int payloadLength, SpxpSymmetricKeySpec key) throws SpxpCryptoException {
+        try {
+            return getCompactLength(encodeCompactHeaders(key).length, payloadLength);
+        } catch(JSONException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    private static int getCompactLength(int encodedHeadersLength, int payloadLength) {
+        return encodedHeadersLength + 2 + Base64Url.encodedLength(A256GCM_IV_SIZE / 8) + 1 + Base64Url.encodedLength(payloadLength) + 1 + Base64Url.encodedLength(A256GCM_AUTH_TAG_LENGTH / 8);
+    }
+
+    private static byte[] encodeCompactHeaders(SpxpSymmetricKeySpec key) {
+        JSONObject header = new JSONObject();
+        header.put("alg", "dir");
+        header.put("enc", "A256GCM");
+        header.put("kid", key.getKeyId());
+        return encodeBase64Url(header.toString().getBytes(StandardCharsets.UTF_8)).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private ByteBuffer encryptSymmetricCompactInternal(ByteBuffer payload, SpxpSymmetricKeySpec key, ByteBuffer dest) throws SpxpCryptoException
+    {
+        try
+        {
+            // generate header
+            byte[] encodedHeaders = encodeCompactHeaders(key);
+            int compactLength = getCompactLength(encodedHeaders.length, payload.remaining());
+            if(dest == null) {
+                dest = ByteBuffer.allocate(compactLength);
+            } else if(dest.remaining() < compactLength) {
+                throw new SpxpCryptoException("Destination buffer too small. Required " + compactLength + " bytes");
+            }
+            // create random IV
+            byte[] iv = new byte[A256GCM_IV_SIZE / 8];
+            randomSource.current().nextBytes(iv);
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // secret key
+            SpxpKeyCache.CachedKey cachedKey = acquireCachedKey(key.getKeyId(), key.getSymmetricKey());
+            SecretKey secretKey = cachedKey != null ? cachedKey.getKey() : new SecretKeySpec(key.getSymmetricKey(), AES_JCE_KEY_SPEC);
+            // write into a duplicate, so that the buffers are left untouched on failure
+            ByteBuffer in = payload.duplicate();
+            ByteBuffer out = dest.duplicate();
+            // encoded header, empty encrypted CEK and IV
+            out.put(encodedHeaders);
+            out.put((byte) '.');
+            out.put((byte) '.');
+            Base64Url.encode(iv, 0, iv.length, out);
+            out.put((byte) '.');
+            // init Cipher
+            int mode = Cipher.ENCRYPT_MODE;
+            Cipher c = acquireCipher(cachedKey);
+            try {
+                c.init(mode, secretKey, algoSpec);
+                // the encoded header is the additional authentication data
+                c.updateAAD(encodedHeaders);
+                // encrypt, then encode cipher text and auth tag
+                encryptAndEncode(c, in, out);
+            } finally {
+                releaseCipher(cachedKey, c);
+            }
+            ((Buffer) payload).position(in.position());
+            ((Buffer) dest).position(out.position());
+            return dest;
+        }
+        catch(JSONException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | NoSuchAlgorithmException | ShortBufferException e)
+        {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // feeds the payload through the cipher in chunks and writes the Base64url encoded
+    // cipher text, a '.' and the encoded auth tag, without materialising the cipher text
+    private void encryptAndEncode(Cipher c, ByteBuffer in, ByteBuffer out) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        // chunks are a multiple of 3 bytes, so that they encode without padding
+        int chunkSize = Math.max(3, bufferSize - bufferSize % 3);
+        // room for a chunk, up to 15 bytes GCM holds back from earlier updates, the auth
+        // tag of doFinal() and up to 2 bytes carried over to the next encoding step
+        byte[] buffer = new byte[chunkSize + 15 + A256GCM_AUTH_TAG_LENGTH / 8 + 2];
+        ByteBuffer encrypted = ByteBuffer.wrap(buffer);
+        int inLimit = in.limit();
+        int carry = 0;
+        while(in.hasRemaining()) {
+            ((Buffer) in).limit(in.position() + Math.min(chunkSize, in.remaining()));
+            c.update(in, encrypted);
+            ((Buffer) in).limit(inLimit);
+            int available = encrypted.position();
+            int encodable = available - available % 3;
+            Base64Url.encode(buffer, 0, encodable, out);
+            carry = available - encodable;
+            System.arraycopy(buffer, encodable, buffer, 0, carry);
+            ((Buffer) encrypted).position(carry);
+        }
+        int available = carry + c.doFinal(buffer, carry);
+        int tagStart = available - A256GCM_AUTH_TAG_LENGTH / 8;
+        Base64Url.encode(buffer, 0, tagStart, out);
+        out.put((byte) '.');
+        Base64Url.encode(buffer, tagStart, A256GCM_AUTH_TAG_LENGTH / 8, out);
+    }
+
+    private static byte[] calculateAAD(String headersJson, byte[] customAAD) {
+        byte[] headerBytes = headersJson.getBytes(StandardCharsets.UTF_8);
+        String base64UrlHeadersInJson = encodeBase64Url(headerBytes);
+        byte[] headersAAD = base64UrlHeadersInJson.getBytes(StandardCharsets.US_ASCII);
+        if(customAAD == null || customAAD.length == 0) {
+            return headersAAD;
+        }
+        byte[] newAAD = Arrays.copyOf(headersAAD, headersAAD.length + 1 + customAAD.length);
+        newAAD[headersAAD.length] = '.';
+        System.arraycopy(customAAD, 0, newAAD, headersAAD.length + 1, customAAD.length);
+        return newAAD;
+    }
+
+    public String decryptSymmetricCompact(String compact, SpxpKeyProvider keyProvider) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            ByteBuffer decrypted = decryptSymmetricCompactInternal(ByteBuffer.wrap(compact.getBytes(StandardCharsets.US_ASCII)), keyProvider, null);
+            String result = new String(decrypted.array(), StandardCharsets.UTF_8);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("decryptSymmetricCompact", startTime, success);
+        }
+    }
+
+    public byte[] decryptSymmetricCompact(byte[] compact, SpxpKeyProvider keyProvider) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            byte[] result = decryptSymmetricCompactInternal(ByteBuffer.wrap(compact), keyProvider, null).array();
+            success = true;
+            return result;
+        } finally {
+            recordOperation("decryptSymmetricCompact", startTime, success);
+        }
+    }
+
+    // decrypts the ASCII compact serialization in the remaining bytes of compact and writes
+    // the plain text to dest. Both buffers may be direct. Returns the number of bytes
+    // written to dest, see getDecryptedCompactLength() for the required space
+    public int decryptSymmetricCompact(ByteBuffer compact, SpxpKeyProvider keyProvider, ByteBuffer dest) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            int destStart = dest.position();
+            decryptSymmetricCompactInternal(compact, keyProvider, dest);
+            success = true;
+            return dest.position() - destStart;
+        } finally {
+            recordOperation("decryptSymmetricCompact", startTime, success);
+        }
+    }
+
+    public int getDecryptedCompactLength(ByteBuffer compact) throws SpxpCryptoException {
+        try {
+            int[] separators = findCompactSeparators(compact);
+            return Base64Url.decodedLength(compact, separators[2] + 1, separators[3]);
+        } catch(IllegalArgumentException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // positions of the four '.' separating the five segments of the compact serialization
+    private static int[] findCompactSeparators(ByteBuffer compact) throws SpxpCryptoException {
+        int[] result = new int[4];
+        int count = 0;
+        for(int i = compact.position(); i < compact.limit(); i++) {
+            if(compact.get(i) == '.') {
+                if(count == result.length) {
+                    throw new SpxpCryptoException("Invalid compact representation");
+                }
+                result[count++] = i;
+            }
+        }
+        if(count != result.length) {
+            throw new SpxpCryptoException("Invalid compact representation");
+        }
+        return result;
+    }
+
+    private ByteBuffer decryptSymmetricCompactInternal(ByteBuffer compact, SpxpKeyProvider keyProvider, ByteBuffer dest) throws SpxpCryptoException
+    {
+        try
+        {
+            // decode compact representation
+            int[] separators = findCompactSeparators(compact);
+            int start = compact.position();
+            String headersJson = new String(Base64Url.decode(compact, start, separators[0]), StandardCharsets.UTF_8);
+            byte[] encryptedCEK = Base64Url.decode(compact, separators[0] + 1, separators[1]);
+            byte[] iv = Base64Url.decode(compact, separators[1] + 1, separators[2]);
+            int cipherStart = separators[2] + 1;
+            int cipherEnd = Base64Url.unpaddedEnd(compact, cipherStart, separators[3]);
+            int cipherLength = Base64Url.decodedLength(compact, cipherStart, cipherEnd);
+            byte[] authTag = Base64Url.decode(compact, separators[3] + 1, compact.limit());
+            // read header
+            JSONObject header = new JSONObject(headersJson);
+            String algHeader = header.getString("alg");
+            String encHeader = header.getString("enc");
+            String aadHeader = header.optString("aad", null);
+            String kidHeader = header.getString("kid");
+            // check SPXP algorithm specs
+            if(!algHeader.equals("dir") || !encHeader.equals("A256GCM") ) {
+                throw new SpxpCryptoException("Unsupported algortithm or encoding");
+            }
+            if(encryptedCEK != null && encryptedCEK.length > 0) {
+                throw new SpxpCryptoException("Unexpected encrypted CEK");
+            }
+            if(aadHeader != null) {
+                throw new SpxpCryptoException("Unexpected AAD");
+            }
+            if(iv == null || iv.length != A256GCM_IV_SIZE/8) {
+                throw new SpxpCryptoException("Missing IV or invalid IV size");
+            }
+            if(authTag == null || authTag.length != A256GCM_AUTH_TAG_LENGTH/8) {
+                throw new SpxpCryptoException("Missing auth tag or invalid auth tag size");
+            }
+            if(dest == null) {
+                dest = ByteBuffer.allocate(cipherLength);
+            } else if(dest.remaining() < cipherLength) {
+                throw new SpxpCryptoException("Destination buffer too small. Required " + cipherLength + " bytes");
+            }
+            // get SecretKey
+            SecretKey secretKey = keyProvider.getKey(kidHeader);
+            if(secretKey == null) {
+                throw new SpxpCryptoNoSuchKeyException();
+            }
+            SpxpKeyCache.CachedKey cachedKey = acquireCachedKey(kidHeader, secretKey);
+            if(cachedKey != null) {
+                secretKey = cachedKey.getKey();
+            }
+            // additional authentication data is the encoded header as it is
+            byte[] aad = new byte[separators[0] - start];
+            ByteBuffer encodedHeader = compact.duplicate();
+            encodedHeader.get(aad);
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // decrypt into a duplicate, so that dest is left untouched on failure
+            ByteBuffer out = dest.duplicate();
+            int mode = Cipher.DECRYPT_MODE;
+            Cipher c = acquireCipher(cachedKey);
+            try {
+                c.init(mode, secretKey, algoSpec);
+                c.updateAAD(aad);
+                decodeAndDecrypt(c, compact, cipherStart, cipherEnd, authTag, out);
+            } finally {
+                releaseCipher(cachedKey, c);
+            }
+            ((Buffer) compact).position(compact.limit());
+            ((Buffer) dest).position(out.position());
+            return dest;
+        }
+        catch(IllegalArgumentException | JSONException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e)
+        {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // decodes the Base64url cipher text in src[from, to) chunk by chunk straight into the cipher
+    private void decodeAndDecrypt(Cipher c, ByteBuffer src, int from, int to, byte[] authTag, ByteBuffer out) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        // chunks are a multiple of 4 characters, so that they decode on their own
+        int chunkChars = Math.max(4, (bufferSize / 3) * 4);
+        byte[] buffer = new byte[(chunkChars / 4) * 3];
+        for(int i = from; i < to; i += chunkChars) {
+            int decoded = Base64Url.decode(src, i, Math.min(i + chunkChars, to), buffer, 0);
+            c.update(ByteBuffer.wrap(buffer, 0, decoded), out);
+        }
+        c.doFinal(ByteBuffer.wrap(authTag), out);
+    }
+
+    public String encryptSymmetricJson(String payload, List<SpxpSymmetricKeySpec> recipientKeys) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = encryptSymmetricJsonInternal(payload, recipientKeys);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("encryptSymmetricJson", startTime, success);
+        }
+    }
+
+    private String encryptSymmetricJsonInternal(String payload, List<SpxpSymmetricKeySpec> recipientKeys) throws SpxpCryptoException
+    {
+        try
+        {
+            // generate CEK
+            KeyGenerator keyGen = newKeyGenerator();
+            keyGen.init(A256GCM_KEY_SIZE, randomSource.current());
+            SecretKey cek = keyGen.generateKey();
+            // create random IV
+            byte[] iv = new byte[A256GCM_IV_SIZE / 8];
+            randomSource.current().nextBytes(iv);
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // protected headers
+            String protectedHeadersJson = "{\"enc\":\"A256GCM\"}";
+            // calculate additional authentication data
+            byte[] aad  = calculateAAD(protectedHeadersJson, null);
+            // init Cipher
+            int mode = Cipher.ENCRYPT_MODE;
+            Cipher c = acquireCipher();
+            byte[] encryptedContent;
+            try {
+                c.init(mode, cek, algoSpec);
+                c.updateAAD(aad);
+                // encrypt
+                encryptedContent = c.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                releaseCipher(c);
+            }
+            byte[] cipher = Arrays.copyOf(encryptedContent, encryptedContent.length - A256GCM_AUTH_TAG_LENGTH / 8);
+            byte[] authTag = Arrays.copyOfRange(encryptedContent, encryptedContent.length - A256GCM_AUTH_TAG_LENGTH / 8, encryptedContent.length);
+            // prepare JSON JWE result. Members are written in a fixed order with the
+            // ciphertext last, so that streaming readers know key and IV when they reach it
+            JSONStringer result = new JSONStringer();
+            result.object();
+            result.key("protected").value(encodeBase64Url(protectedHeadersJson.getBytes(StandardCharsets.UTF_8)));
+            //result.key("aad").value(encodeBase64Url(extraAAD.getBytes(StandardCharsets.UTF_8)));
+            result.key("unprotected").object().key("alg").value("A256GCMKW").endObject();
+            result.key("iv").value(encodeBase64Url(iv));
+            result.key("recipients").array();
+            for(JSONObject recipient : encryptCEKForRecipients(cek, recipientKeys))
+            {
+                result.value(recipient);
+            }
+            result.endArray();
+            result.key("tag").value(encodeBase64Url(authTag));
+            result.key("ciphertext").value(encodeBase64Url(cipher));
+            result.endObject();
+            return result.toString();
+        }
+        catch(IllegalArgumentException | JSONException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | NoSuchAlgorithmException e)
+        {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // wraps the CEK for all recipients, in parallel on the executor for large audiences.
+    // The result is always in the order of recipientKeys
+    private JSONObject[] encryptCEKForRecipients(final SecretKey cek, final List<SpxpSymmetricKeySpec> recipientKeys) throws SpxpCryptoException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException {
+        final JSONObject[] result = new JSONObject[recipientKeys.size()];
+        if(executor == null || result.length < parallelRecipientThreshold) {
+            for(int i = 0; i < result.length; i++) {
+                result[i] = encryptCEKPerRecipient(cek, recipientKeys.get(i));
+            }
+            return result;
+        }
+        // one slice per processor, each slice fills its own range of the result.
+        // The calling thread takes care of the first slice itself
+        int slices = Math.min(Runtime.getRuntime().availableProcessors(), result.length);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(slices - 1);
+        for(int slice = 1; slice < slices; slice++) {
+            final int from = (int) ((long) result.length * slice / slices);
+            final int to = (int) ((long) result.length * (slice + 1) / slices);
+            futures.add(CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = from; i < to; i++) {
+                            result[i] = encryptCEKPerRecipient(cek, recipientKeys.get(i));
+                        }
+                    } catch(GeneralSecurityException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, executor));
+        }
+        int firstSliceEnd = result.length / slices;
+        for(int i = 0; i < firstSliceEnd; i++) {
+            result[i] = encryptCEKPerRecipient(cek, recipientKeys.get(i));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } catch(CompletionException e) {
+            throw new SpxpCryptoException(e.getCause() != null ? e.getCause() : e);
+        }
+        return result;
+    }
+
+    private JSONObject encryptCEKPerRecipient(SecretKey cek, SpxpSymmetricKeySpec recipientKeySpec) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException {
+        // encrypt CEK
+        byte[] iv = new byte[A256GCM_IV_SIZE / 8];
+        randomSource.current().nextBytes(iv);
+        AlgorithmParameterSpec paramSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+        int mode = Cipher.WRAP_MODE;
+        SpxpKeyCache.CachedKey cachedKey = acquireCachedKey(recipientKeySpec.getKeyId(), recipientKeySpec.getSymmetricKey());
+        SecretKey secretKey = cachedKey != null ? cachedKey.getKey() : new SecretKeySpec(recipientKeySpec.getSymmetricKey(), AES_JCE_KEY_SPEC);
+        Cipher c = acquireCipher(cachedKey);
+        byte[] wrappedKeyAndTag;
+        try {
+            c.init(mode, secretKey, paramSpec); // c.init(mode, secretKey, algoSpec, random);
+            wrappedKeyAndTag = c.wrap(cek);
+        } finally {
+            releaseCipher(cachedKey, c);
+        }
+        byte[] wrappedKey = Arrays.copyOf(wrappedKeyAndTag, wrappedKeyAndTag.length - A256GCM_AUTH_TAG_LENGTH / 8);
+        byte[] authTag = Arrays.copyOfRange(wrappedKeyAndTag, wrappedKeyAndTag.length - A256GCM_AUTH_TAG_LENGTH / 8, wrappedKeyAndTag.length);
+        Arrays.fill(wrappedKeyAndTag, (byte) 0);
+        JSONObject recipientHeader = new JSONObject();
+        recipientHeader.putOnce("kid", recipientKeySpec.getKeyId());
+        recipientHeader.putOnce("iv", encodeBase64Url(iv));
+        recipientHeader.putOnce("tag", encodeBase64Url(authTag));
+        JSONObject recipientObj = new JSONObject();
+        recipientObj.putOnce("header", recipientHeader);
+        recipientObj.putOnce("encrypted_key", encodeBase64Url(wrappedKey));
+        return recipientObj;
+    }
+
+    public String decryptSymmetricJson(String json, SpxpKeyProvider keyProvider) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = jsonStreaming ? decryptSymmetricJsonStreaming(new StringReader(json), keyProvider) : decryptSymmetricJsonInternal(json, keyProvider);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("decryptSymmetricJson", startTime, success);
+        }
+    }
+
+    // always uses the streaming parser, regardless of the jsonStreaming setting
+    public String decryptSymmetricJson(Reader json, SpxpKeyProvider keyProvider) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = decryptSymmetricJsonStreaming(json, keyProvider);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("decryptSymmetricJson", startTime, success);
+        }
+    }
+
+    private String decryptSymmetricJsonInternal(String json, SpxpKeyProvider keyProvider) throws SpxpCryptoException
+    {
+        try
+        {
+            // decode and check headers
+            JSONObject obj = new JSONObject(json);
+            JSONObject unprotectedHeader = obj.getJSONObject("unprotected");
+            String alg = unprotectedHeader.getString("alg");
+            if(!alg.equals("A256GCMKW")) {
+                throw new SpxpCryptoException("Unsupported algortithm");
+            }
+            String protectedHeadersJson = new String(decodeBase64Url(obj.getString("protected")), StandardCharsets.UTF_8);
+            JSONObject protectedHeader = new JSONObject(protectedHeadersJson);
+            String enc = protectedHeader.getString("enc");
+            if(!enc.equals("A256GCM")) {
+                throw new SpxpCryptoException("Unsupported encoding");
+            }
+            // collect the wrapped CEKs of all recipients
+            JSONArray recipients = obj.getJSONArray("recipients");
+            List<WrappedCEK> candidates = new ArrayList<>(recipients.length());
+            for(Object  o : recipients) {
+                if(!(o instanceof JSONObject)) {
+                    continue;
+                }
+                JSONObject candidate = (JSONObject)o;
+                JSONObject recipientHeader = candidate.optJSONObject("header");
+                if(recipientHeader == null) {
+                    continue;
+                }
+                String kid = recipientHeader.optString("kid", null);
+                String iv = recipientHeader.optString("iv", null);
+                String tag = recipientHeader.optString("tag", null);
+                String encryptedKey = candidate.optString("encrypted_key", null);
+                if(kid != null && iv != null && tag != null && encryptedKey != null) {
+                    candidates.add(new WrappedCEK(kid, iv, tag, encryptedKey));
+                }
+            }
+            SecretKey cek = unwrapCEK(candidates, keyProvider);
+            if(cek == null) {
+                throw new SpxpCryptoNoSuchKeyException();
+            }
+            // decode cryptographic material
+            String customAADEncoded = obj.optString("aad", null);
+            byte[] customAAD = customAADEncoded==null ? null : decodeBase64Url(customAADEncoded);
+            byte[] iv = decodeBase64Url(obj.getString("iv"));
+            byte[] cipher = decodeBase64Url(obj.getString("ciphertext"));
+            byte[] authTag = decodeBase64Url(obj.getString("tag"));
+            if(iv.length != (A256GCM_IV_SIZE/8) || authTag.length != A256GCM_AUTH_TAG_LENGTH/8) {
+                throw new SpxpCryptoException("Invalid IV or auth tag size");
+            }
+            // calculate additional authentication data
+            byte[] aad = calculateAAD(protectedHeadersJson, customAAD);
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // reconstruct encrypted content as used by java
+            byte[] encryptedContentWithTag = new byte[cipher.length + authTag.length];
+            System.arraycopy(cipher, 0, encryptedContentWithTag, 0, cipher.length);
+            System.arraycopy(authTag, 0, encryptedContentWithTag, cipher.length, authTag.length);
+            // decrypt
+            int mode = Cipher.DECRYPT_MODE;
+            Cipher c = acquireCipher();
+            byte[] decrypted;
+            try {
+                c.init(mode, cek, algoSpec);
+                c.updateAAD(aad);
+                decrypted = c.doFinal(encryptedContentWithTag);
+            } finally {
+                releaseCipher(c);
+            }
+            // return as String
+            return new String(decrypted, StandardCharsets.UTF_8);
+        }
+        catch(IllegalArgumentException | JSONException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e)
+        {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    private String decryptSymmetricJsonStreaming(Reader json, SpxpKeyProvider keyProvider) throws SpxpCryptoException
+    {
+        try
+        {
+            JweJsonReader reader = new JweJsonReader(json, bufferSize);
+            byte[] scratch = new byte[bufferSize];
+            String encodedProtectedHeaders = null;
+            boolean unprotectedHeaderRead = false;
+            byte[] customAAD = null;
+            byte[] iv = null;
+            byte[] authTag = null;
+            boolean recipientsRead = false;
+            SecretKey cek = null;
+            boolean ciphertextRead = false;
+            PendingCiphertext pendingCiphertext = null;
+            Cipher c = null;
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream(0);
+            Set<String> members = new HashSet<>();
+            try {
+                // walk through the members in document order
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    // rejected like the DOM does, a repeated member would otherwise replace
+                    // values the cipher has already been initialised with
+                    if(!members.add(name)) {
+                        throw new SpxpCryptoException("Duplicate member '" + name + "'");
+                    }
+                    switch(name) {
+                    case "protected":
+                        encodedProtectedHeaders = reader.nextString();
+                        checkSymmetricJsonProtectedHeaders(encodedProtectedHeaders);
+                        break;
+                    case "unprotected":
+                        readSymmetricJsonUnprotectedHeaders(reader);
+                        unprotectedHeaderRead = true;
+                        break;
+                    case "aad":
+                        customAAD = decodeBase64Url(reader.nextString());
+                        break;
+                    case "iv":
+                        iv = decodeBase64Url(reader.nextString());
+                        break;
+                    case "tag":
+                        authTag = decodeBase64Url(reader.nextString());
+                        break;
+                    case "recipients":
+                        cek = readSymmetricJsonRecipients(reader, keyProvider);
+                        recipientsRead = true;
+                        break;
+                    case "ciphertext":
+                        if(cek != null && iv != null && encodedProtectedHeaders != null && members.contains("aad")) {
+                            // everything is known, decode straight into the Cipher
+                            c = initSymmetricJsonDecryption(cek, iv, encodedProtectedHeaders, customAAD);
+                            reader.nextBase64(new CipherUpdateOutputStream(c, decrypted), scratch);
+                        } else if(recipientsRead && cek == null) {
+                            // no key available, decryption is going to fail anyway
+                            reader.skipValue();
+                        } else {
+                            // members arrived in an unfavourable order, or a custom AAD may
+                            // still follow, keep the decoded ciphertext
+                            pendingCiphertext = new PendingCiphertext(bufferSize);
+                            reader.nextBase64(pendingCiphertext, scratch);
+                        }
+                        ciphertextRead = true;
+                        break;
+                    default:
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                reader.endDocument();
+                // check what we have got
+                if(encodedProtectedHeaders == null || !unprotectedHeaderRead) {
+                    throw new SpxpCryptoException("Missing headers");
+                }
+                if(cek == null) {
+                    throw new SpxpCryptoNoSuchKeyException();
+                }
+                if(iv == null || authTag == null || !ciphertextRead) {
+                    throw new SpxpCryptoException("Missing IV, auth tag or ciphertext");
+                }
+                if(authTag.length != A256GCM_AUTH_TAG_LENGTH/8) {
+                    throw new SpxpCryptoException("Invalid IV or auth tag size");
+                }
+                if(c == null) {
+                    // cipher text and auth tag in a single doFinal(), which spares the Cipher
+                    // from buffering the cipher text itself
+                    c = initSymmetricJsonDecryption(cek, iv, encodedProtectedHeaders, customAAD);
+                    pendingCiphertext.write(authTag);
+                    return new String(c.doFinal(pendingCiphertext.getBuffer(), 0, pendingCiphertext.size()), StandardCharsets.UTF_8);
+                }
+                // the auth tag completes the cipher text as used by java
+                byte[] last = c.doFinal(authTag);
+                if(decrypted.size() == 0) {
+                    return new String(last, StandardCharsets.UTF_8);
+                }
+                decrypted.write(last);
+                return decrypted.toString(StandardCharsets.UTF_8.name());
+            } finally {
+                releaseCipher(c);
+            }
+        }
+        catch(IOException | IllegalArgumentException | JSONException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e)
+        {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    private static void checkSymmetricJsonProtectedHeaders(String encodedProtectedHeaders) throws SpxpCryptoException {
+        String protectedHeadersJson = new String(decodeBase64Url(encodedProtectedHeaders), StandardCharsets.UTF_8);
+        JSONObject protectedHeader = new JSONObject(protectedHeadersJson);
+        String enc = protectedHeader.getString("enc");
+        if(!enc.equals("A256GCM")) {
+            throw new SpxpCryptoException("Unsupported encoding");
+        }
+    }
+
+    private static void readSymmetricJsonUnprotectedHeaders(JweJsonReader reader) throws IOException, SpxpCryptoException {
+        String alg = null;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            if(reader.nextName().equals("alg") && reader.isNextString()) {
+                alg = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if(alg == null || !alg.equals("A256GCMKW")) {
+            throw new SpxpCryptoException("Unsupported algortithm");
+        }
+    }
+
+    // collects the wrapped CEKs of all recipients and unwraps the first one the key
+    // provider has a key encryption key for
+    private SecretKey readSymmetricJsonRecipients(JweJsonReader reader, SpxpKeyProvider keyProvider) throws IOException {
+        List<WrappedCEK> candidates = new ArrayList<>();
+        reader.beginArray();
+        while(reader.hasNext()) {
+            if(!reader.isNextObject()) {
+                reader.skipValue();
+                continue;
+            }
+            String kid = null;
+            String iv = null;
+            String tag = null;
+            String encryptedKey = null;
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String name = reader.nextName();
+                if(name.equals("header") && reader.isNextObject()) {
+                    reader.beginObject();
+                    while(reader.hasNext()) {
+                        String headerName = reader.nextName();
+                        if(!reader.isNextString()) {
+                            reader.skipValue();
+                        } else if(headerName.equals("kid")) {
+                            kid = reader.nextString();
+                        } else if(headerName.equals("iv")) {
+                            iv = reader.nextString();
+                        } else if(headerName.equals("tag")) {
+                            tag = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else if(name.equals("encrypted_key") && reader.isNextString()) {
+                    encryptedKey = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if(kid != null && iv != null && tag != null && encryptedKey != null) {
+                candidates.add(new WrappedCEK(kid, iv, tag, encryptedKey));
+            }
+        }
+        reader.endArray();
+        return unwrapCEK(candidates, keyProvider);
+    }
+
+    // the still encoded CEK wrapped for a single recipient
+    private static class WrappedCEK {
+
+        private final String kid;
+
+        private final String iv;
+
+        private final String tag;
+
+        private final String encryptedKey;
+
+        WrappedCEK(String kid, String iv, String tag, String encryptedKey) {
+            this.kid = kid;
+            this.iv = iv;
+            this.tag = tag;
+            this.encryptedKey = encryptedKey;
+        }
+
+    }
+
+    // resolves the key ids of all candidates with a single key provider call and only
+    // tries to unwrap the candidates with a known key encryption key, in document order
+    private SecretKey unwrapCEK(List<WrappedCEK> candidates, SpxpKeyProvider keyProvider) {
+        if(candidates.isEmpty()) {
+            return null;
+        }
+        // document order, so providers see the key ids as they appear in the JWE
+        Set<String> kids = new LinkedHashSet<>();
+        for(WrappedCEK candidate : candidates) {
+            kids.add(candidate.kid);
+        }
+        Map<String, SecretKey> keyEncryptionKeys;
+        try {
+            keyEncryptionKeys = keyProvider.getKeys(kids);
+        } catch(RuntimeException e) {
+            // a failing key provider means no recipient can be unwrapped
+            return null;
+        }
+        if(keyEncryptionKeys == null || keyEncryptionKeys.isEmpty()) {
+            return null;
+        }
+        for(WrappedCEK candidate : candidates) {
+            SecretKey keyEncryptionKey = keyEncryptionKeys.get(candidate.kid);
+            if(keyEncryptionKey == null) {
+                continue;
+            }
+            try {
+                return decryptCEK(candidate.kid, keyEncryptionKey, decodeBase64Url(candidate.encryptedKey), decodeBase64Url(candidate.iv), decodeBase64Url(candidate.tag));
+            } catch(Exception e) {
+                continue;
+            }
+        }
+        return null;
+    }
+
+    private Cipher initSymmetricJsonDecryption(SecretKey cek, byte[] iv, String encodedProtectedHeaders, byte[] customAAD) throws SpxpCryptoException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        if(iv.length != (A256GCM_IV_SIZE/8)) {
+            throw new SpxpCryptoException("Invalid IV or auth tag size");
+        }
+        // additional authentication data is the encoded protected header as it is
+        byte[] aad = encodedProtectedHeaders.getBytes(StandardCharsets.US_ASCII);
+        if(customAAD != null && customAAD.length > 0) {
+            aad = Arrays.copyOf(aad, aad.length + 1 + customAAD.length);
+            aad[aad.length - customAAD.length - 1] = '.';
+            System.arraycopy(customAAD, 0, aad, aad.length - customAAD.length, customAAD.length);
+        }
+        Cipher c = acquireCipher();
+        try {
+            c.init(Cipher.DECRYPT_MODE, cek, new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv));
+            c.updateAAD(aad);
+            return c;
+        } catch(InvalidKeyException | InvalidAlgorithmParameterException e) {
+            releaseCipher(c);
+            throw e;
+        }
+    }
+
+    // the decoded cipher text of a JWE whose cipher cannot be initialised yet
+    private static class PendingCiphertext extends ByteArrayOutputStream {
+
+        PendingCiphertext(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+
+    }
+
+    // passes everything written through Cipher.update()
+    private static class CipherUpdateOutputStream extends OutputStream {
+
+        private final Cipher cipher;
+
+        private final OutputStream out;
+
+        CipherUpdateOutputStream(Cipher cipher, OutputStream out) {
+            this.cipher = cipher;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            byte[] result = cipher.update(b, off, len);
+            if(result != null && result.length > 0) {
+                out.write(result);
+            }
+        }
+
+    }
+
+    private SecretKey decryptCEK(String kid, SecretKey keyEncryptionKey, byte[] encryptedKey, byte[] iv, byte[] tag) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, SpxpCryptoException {
+        AlgorithmParameterSpec paramSpec = new GCMParameterSpec(128, iv);
+        // reconstruct encrypted content as used by java
+        byte[] encryptedKeyWithTag = new byte[encryptedKey.length + tag.length];
+        System.arraycopy(encryptedKey, 0, encryptedKeyWithTag, 0, encryptedKey.length);
+        System.arraycopy(tag, 0, encryptedKeyWithTag, encryptedKey.length, tag.length);
+        // decrypt
+        int mode = Cipher.UNWRAP_MODE;
+        SpxpKeyCache.CachedKey cachedKey = acquireCachedKey(kid, keyEncryptionKey);
+        if(cachedKey != null) {
+            keyEncryptionKey = cachedKey.getKey();
+        }
+        Cipher c = acquireCipher(cachedKey);
+        SecretKey result;
+        try {
+            c.init(mode, keyEncryptionKey, paramSpec);
+            result = (SecretKey) c.unwrap(encryptedKeyWithTag, AES_JCE_KEY_SPEC, Cipher.SECRET_KEY);
+        } finally {
+            releaseCipher(cachedKey, c);
+        }
+        if(result.getEncoded().length != A256GCM_KEY_SIZE/8) {
+            throw new SpxpCryptoException("Invalid key size");
+        }
+        return result;
+    }
+
+    public String encryptResource(InputStream src, OutputStream dest, String uri) throws IOException, SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = encryptResourceInternal(src, dest, uri);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("encryptResource", startTime, success);
+        }
+    }
+
+    private String encryptResourceInternal(InputStream src, OutputStream dest, String uri) throws IOException, SpxpCryptoException {
+        try {
+            // content encryption key
+            KeyGenerator keyGen = newKeyGenerator();
+            keyGen.init(A256GCM_KEY_SIZE, randomSource.current());
+            SecretKey cek = keyGen.generateKey();
+            // create random IV
+            byte[] iv = new byte[A256GCM_IV_SIZE / 8];
+            randomSource.current().nextBytes(iv);
+            if(resourceChunkSize > 0) {
+                try {
+                    new ChunkedResourceCipher(this, executor, cek, iv, resourceChunkSize).encrypt(src, dest);
+                } finally {
+                    src.close();
+                    dest.close();
+                }
+                return buildResourceDescriptor(iv, cek, null, uri);
+            }
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // init Cipher
+            int mode = Cipher.ENCRYPT_MODE;
+            Cipher c = acquireCipher();
+            RestrainLastNBytesOutputStream rlnbos;
+            try {
+                c.init(mode, cek, algoSpec);
+                // encrypt
+                rlnbos = new RestrainLastNBytesOutputStream(dest, A256GCM_AUTH_TAG_LENGTH / 8);
+                CipherOutputStream cos = new CipherOutputStream(rlnbos, c);
+                try {
+                    int bytesRead = -1;
+                    byte[] buffer = new byte[bufferSize];
+                    while ((bytesRead = src.read(buffer)) != -1) {
+                        cos.write(buffer, 0, bytesRead);
+                    }
+                } finally {
+                    src.close();
+                    cos.close();
+                }
+            } finally {
+                releaseCipher(c);
+            }
+            byte[] tag = rlnbos.getRestrainedBytes();
+            return buildResourceDescriptor(iv, cek, tag, uri);
+        } catch(GeneralSecurityException | JSONException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // the chunked format is described by its chunk size instead of a single auth tag
+    String buildResourceDescriptor(byte[] iv, SecretKey cek, byte[] tag, String uri) {
+        JSONObject result = new JSONObject();
+        result.put("iv", encodeBase64Url(iv));
+        result.put("k", encodeBase64Url(cek.getEncoded()));
+        if(tag != null) {
+            result.put("tag", encodeBase64Url(tag));
+        } else {
+            result.put("chunk", resourceChunkSize);
+        }
+        if(uri != null) {
+            result.put("uri", uri);
+        }
+        return result.toString();
+    }
+
+    public void decryptResource(InputStream src, OutputStream dest, String json) throws IOException, SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            decryptResourceInternal(src, dest, json);
+            success = true;
+        } finally {
+            recordOperation("decryptResource", startTime, success);
+        }
+    }
+
+    private void decryptResourceInternal(InputStream src, OutputStream dest, String json) throws IOException, SpxpCryptoException {
+        try {
+            JSONObject obj = new JSONObject(json);
+            ChunkedResourceCipher chunked = getChunkedResourceCipher(obj);
+            if(chunked != null) {
+                try {
+                    chunked.decrypt(src, dest);
+                } finally {
+                    src.close();
+                    dest.close();
+                }
+                return;
+            }
+            byte[] iv = decodeBase64Url(obj.getString("iv"));
+            byte[] k = decodeBase64Url(obj.getString("k"));
+            byte[] authTag = decodeBase64Url(obj.getString("tag"));
+            if(iv.length != (A256GCM_IV_SIZE/8) || authTag.length != A256GCM_AUTH_TAG_LENGTH/8 || k.length != A256GCM_KEY_SIZE/8) {
+                throw new SpxpCryptoException("Invalid IV, auth tag or key size");
+            }
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // init cipher
+            int mode = Cipher.DECRYPT_MODE;
+            Cipher c = acquireCipher();
+            try {
+                c.init(mode,  new SecretKeySpec(k, AES_JCE_KEY_SPEC), algoSpec);
+                // decrypt
+                CipherOutputStream cos = new CipherOutputStream(dest, c);
+                try {
+                    int bytesRead = -1;
+                    byte[] buffer = new byte[bufferSize];
+                    while ((bytesRead = src.read(buffer)) != -1) {
+                        cos.write(buffer, 0, bytesRead);
+                    }
+                    cos.write(authTag);
+                } finally {
+                    src.close();
+                    cos.close();
+                }
+            } finally {
+                releaseCipher(c);
+            }
+        } catch(IllegalArgumentException | JSONException | GeneralSecurityException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // returns a stream of the cipher text of src that encrypts on demand while it is being
+    // read, e.g. to pass it on to an upload client. The descriptor can be obtained from
+    // the stream once it has been read to its end. Closing it closes src
+    public SpxpEncryptingInputStream openEncryptingStream(InputStream src, String uri) throws SpxpCryptoException {
+        try {
+            // content encryption key
+            KeyGenerator keyGen = newKeyGenerator();
+            keyGen.init(A256GCM_KEY_SIZE, randomSource.current());
+            SecretKey cek = keyGen.generateKey();
+            // create random IV
+            byte[] iv = new byte[A256GCM_IV_SIZE / 8];
+            randomSource.current().nextBytes(iv);
+            if(resourceChunkSize > 0) {
+                InputStream cipherText = new ChunkedResourceCipher(this, executor, cek, iv, resourceChunkSize).openEncryptingStream(src);
+                return new SpxpEncryptingInputStream(cipherText, null, this, iv, cek, uri);
+            }
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // init Cipher, handed back by the stream
+            Cipher c = acquireCipher();
+            try {
+                c.init(Cipher.ENCRYPT_MODE, cek, algoSpec);
+            } catch(GeneralSecurityException e) {
+                releaseCipher(c);
+                throw e;
+            }
+            GcmEncryptingInputStream gcm = new GcmEncryptingInputStream(src, this, c, A256GCM_AUTH_TAG_LENGTH / 8, bufferSize);
+            return new SpxpEncryptingInputStream(gcm, gcm, this, iv, cek, uri);
+        } catch(GeneralSecurityException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // returns a stream of the plain text of src that decrypts on demand while it is being
+    // read, using memory bounded by the chunk or buffer size. Closing it closes src.
+    // For the plain SPXP format the tag can only be checked at the end, so the plain text
+    // is released before it has been authenticated and the final read fails with an
+    // IOException on a mismatch. Chunked resources release each chunk once it has been
+    // authenticated
+    public InputStream openDecryptingStream(InputStream src, String json) throws SpxpCryptoException {
+        try {
+            JSONObject obj = new JSONObject(json);
+            ChunkedResourceCipher chunked = getChunkedResourceCipher(obj);
+            if(chunked != null) {
+                return chunked.openDecryptingStream(src);
+            }
+            byte[] iv = decodeBase64Url(obj.getString("iv"));
+            byte[] k = decodeBase64Url(obj.getString("k"));
+            byte[] authTag = decodeBase64Url(obj.getString("tag"));
+            if(iv.length != (A256GCM_IV_SIZE/8) || authTag.length != A256GCM_AUTH_TAG_LENGTH/8 || k.length != A256GCM_KEY_SIZE/8) {
+                throw new SpxpCryptoException("Invalid IV, auth tag or key size");
+            }
+            return new GcmDecryptingInputStream(src, k, iv, authTag, bufferSize);
+        } catch(IllegalArgumentException | JSONException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    public String encryptResource(Path src, Path dest, String uri) throws IOException, SpxpCryptoException {
+        try(FileChannel srcChannel = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel destChannel = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return encryptResource(srcChannel, destChannel, uri);
+        }
+    }
+
+    // encrypts src from its current position to its end and writes the result to dest at
+    // its current position. Neither channel is closed
+    public String encryptResource(FileChannel src, FileChannel dest, String uri) throws IOException, SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = encryptResourceChannelInternal(src, dest, uri);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("encryptResource", startTime, success);
+        }
+    }
+
+    private String encryptResourceChannelInternal(FileChannel src, FileChannel dest, String uri) throws IOException, SpxpCryptoException {
+        try {
+            // content encryption key
+            KeyGenerator keyGen = newKeyGenerator();
+            keyGen.init(A256GCM_KEY_SIZE, randomSource.current());
+            SecretKey cek = keyGen.generateKey();
+            // create random IV
+            byte[] iv = new byte[A256GCM_IV_SIZE / 8];
+            randomSource.current().nextBytes(iv);
+            if(resourceChunkSize > 0) {
+                // chunks are processed in heap buffers anyway
+                new ChunkedResourceCipher(this, executor, cek, iv, resourceChunkSize).encrypt(Channels.newInputStream(src), Channels.newOutputStream(dest));
+                return buildResourceDescriptor(iv, cek, null, uri);
+            }
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // init Cipher
+            int mode = Cipher.ENCRYPT_MODE;
+            Cipher c = acquireCipher();
+            byte[] tag = new byte[A256GCM_AUTH_TAG_LENGTH / 8];
+            try {
+                c.init(mode, cek, algoSpec);
+                ByteBuffer out = ByteBuffer.allocateDirect(c.getOutputSize(bufferSize) + A256GCM_AUTH_TAG_LENGTH / 8);
+                // encrypt straight from the mapped file
+                long position = src.position();
+                long end = src.size();
+                while(position < end) {
+                    int windowSize = (int) Math.min(MAX_MAPPED_WINDOW_SIZE, end - position);
+                    MappedByteBuffer in = src.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                    while(in.hasRemaining()) {
+                        ((Buffer) in).limit(Math.min(in.position() + bufferSize, windowSize));
+                        c.update(in, out);
+                        ((Buffer) in).limit(windowSize);
+                        writeFully(dest, out);
+                    }
+                    position += windowSize;
+                }
+                src.position(end);
+                // the auth tag is at the very end of the output
+                c.doFinal(ByteBuffer.allocate(0), out);
+                ((Buffer) out).flip();
+                int tagStart = out.limit() - tag.length;
+                ByteBuffer content = out.duplicate();
+                ((Buffer) content).limit(tagStart);
+                while(content.hasRemaining()) {
+                    dest.write(content);
+                }
+                ((Buffer) out).position(tagStart);
+                out.get(tag);
+            } finally {
+                releaseCipher(c);
+            }
+            return buildResourceDescriptor(iv, cek, tag, uri);
+        } catch(GeneralSecurityException | JSONException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // writes the content of a filled buffer and clears it
+    private static void writeFully(FileChannel dest, ByteBuffer buffer) throws IOException {
+        ((Buffer) buffer).flip();
+        while(buffer.hasRemaining()) {
+            dest.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+    }
+
+    public void decryptResource(Path src, Path dest, String json) throws IOException, SpxpCryptoException {
+        try(FileChannel srcChannel = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel destChannel = FileChannel.open(dest, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            decryptResource(srcChannel, destChannel, json);
+        }
+    }
+
+    // decrypts src from its current position to its end and writes the result to dest at
+    // its current position. Neither channel is closed. dest is truncated back in case of
+    // an error. Resources in the single GCM stream format up to the
+    // directResourceDecryptionLimit of the builder are decrypted in a direct buffer kept
+    // per thread, and only written once the tag has been verified. Larger ones are
+    // streamed, which writes plain text before the tag has been verified
+    public void decryptResource(FileChannel src, FileChannel dest, String json) throws IOException, SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            decryptResourceChannelInternal(src, dest, json);
+            success = true;
+        } finally {
+            recordOperation("decryptResource", startTime, success);
+        }
+    }
+
+    private void decryptResourceChannelInternal(FileChannel src, FileChannel dest, String json) throws IOException, SpxpCryptoException {
+        long destStart = dest.position();
+        boolean success = false;
+        try {
+            JSONObject obj = new JSONObject(json);
+            ChunkedResourceCipher chunked = getChunkedResourceCipher(obj);
+            if(chunked != null) {
+                chunked.decrypt(Channels.newInputStream(src), Channels.newOutputStream(dest));
+                success = true;
+                return;
+            }
+            byte[] iv = decodeBase64Url(obj.getString("iv"));
+            byte[] k = decodeBase64Url(obj.getString("k"));
+            byte[] authTag = decodeBase64Url(obj.getString("tag"));
+            if(iv.length != (A256GCM_IV_SIZE/8) || authTag.length != A256GCM_AUTH_TAG_LENGTH/8 || k.length != A256GCM_KEY_SIZE/8) {
+                throw new SpxpCryptoException("Invalid IV, auth tag or key size");
+            }
+            long position = src.position();
+            long end = src.size();
+            long size = end - position;
+            if(size > directResourceDecryptionLimit) {
+                decryptResourceChannelStreaming(src, dest, k, iv, authTag);
+                success = true;
+                return;
+            }
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // init cipher
+            int mode = Cipher.DECRYPT_MODE;
+            Cipher c = acquireCipher();
+            try {
+                c.init(mode,  new SecretKeySpec(k, AES_JCE_KEY_SPEC), algoSpec);
+                // GCM releases the plain text only after the tag has been verified and
+                // buffers everything passed to update() on the heap. One doFinal() over a
+                // direct buffer holding cipher text and tag takes the fast path instead
+                ByteBuffer in = getResourceDecryptionBuffer((int) size + authTag.length);
+                while(in.position() < size) {
+                    if(src.read(in) < 0) {
+                        throw new IOException("Unexpected end of resource");
+                    }
+                }
+                in.put(authTag);
+                ((Buffer) in).flip();
+                // doFinal() is copy-safe, the plain text replaces the cipher text
+                ByteBuffer out = in.duplicate();
+                ((Buffer) out).clear();
+                c.doFinal(in, out);
+                ((Buffer) out).flip();
+                while(out.hasRemaining()) {
+                    dest.write(out);
+                }
+            } finally {
+                releaseCipher(c);
+            }
+            src.position(end);
+            success = true;
+        } catch(IllegalArgumentException | JSONException | GeneralSecurityException e) {
+            throw new SpxpCryptoException(e);
+        } finally {
+            if(!success) {
+                try {
+                    dest.truncate(destStart);
+                } catch(IOException e) {
+                    // keep the original exception
+                }
+            }
+        }
+    }
+
+    // the direct buffer of this thread, cleared and limited to size
+    private ByteBuffer getResourceDecryptionBuffer(int size) {
+        ByteBuffer result = resourceDecryptionBuffer.get();
+        if(result == null || result.capacity() < size) {
+            // grow in powers of two, so that a thread only allocates a few times
+            long capacity = Math.min(Long.highestOneBit(size) * 2, directResourceDecryptionLimit + A256GCM_AUTH_TAG_LENGTH / 8);
+            result = ByteBuffer.allocateDirect((int) Math.max(capacity, size));
+            resourceDecryptionBuffer.set(result);
+        }
+        ((Buffer) result).clear();
+        ((Buffer) result).limit(size);
+        return result;
+    }
+
+    // decrypts with the streaming GCM of BouncyCastle, reading src through mapped windows
+    // and writing to dest as it goes. The plain text is written before the tag has been
+    // verified, the caller truncates dest if this fails
+    private void decryptResourceChannelStreaming(FileChannel src, FileChannel dest, byte[] k, byte[] iv, byte[] authTag) throws IOException, SpxpCryptoException, GeneralSecurityException {
+        if(cipherProvider != null) {
+            decryptResourceChannelStreaming(src, dest, new SecretKeySpec(k, AES_JCE_KEY_SPEC), iv, authTag);
+            return;
+        }
+        org.bouncycastle.crypto.modes.GCMBlockCipher cipher = new org.bouncycastle.crypto.modes.GCMBlockCipher(new org.bouncycastle.crypto.engines.AESEngine());
+        cipher.init(false, new org.bouncycastle.crypto.params.AEADParameters(new org.bouncycastle.crypto.params.KeyParameter(k), A256GCM_AUTH_TAG_LENGTH, iv));
+        byte[] in = new byte[bufferSize];
+        byte[] out = new byte[cipher.getUpdateOutputSize(bufferSize)];
+        long position = src.position();
+        long end = src.size();
+        while(position < end) {
+            int windowSize = (int) Math.min(MAX_MAPPED_WINDOW_SIZE, end - position);
+            MappedByteBuffer window = src.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+            while(window.hasRemaining()) {
+                int n = Math.min(bufferSize, window.remaining());
+                window.get(in, 0, n);
+                // the cipher holds back the last bytes of each update until the next one
+                int outSize = cipher.getUpdateOutputSize(n);
+                if(out.length < outSize) {
+                    out = new byte[outSize];
+                }
+                writeFully(dest, out, cipher.processBytes(in, 0, n, out, 0));
+            }
+            position += windowSize;
+        }
+        src.position(end);
+        // the tag from the descriptor completes the cipher text
+        byte[] last = new byte[cipher.getOutputSize(authTag.length)];
+        try {
+            int length = cipher.processBytes(authTag, 0, authTag.length, last, 0);
+            length += cipher.doFinal(last, length);
+            writeFully(dest, last, length);
+        } catch(org.bouncycastle.crypto.InvalidCipherTextException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // streams through update() of the configured cipherProvider. Providers that withhold
+    // the plain text until the tag has been verified, like SunJCE, keep the whole resource
+    // on the heap until doFinal()
+    private void decryptResourceChannelStreaming(FileChannel src, FileChannel dest, SecretKey key, byte[] iv, byte[] authTag) throws IOException, GeneralSecurityException {
+        Cipher c = acquireCipher();
+        try {
+            c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv));
+            byte[] in = new byte[bufferSize];
+            long position = src.position();
+            long end = src.size();
+            while(position < end) {
+                int windowSize = (int) Math.min(MAX_MAPPED_WINDOW_SIZE, end - position);
+                MappedByteBuffer window = src.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                while(window.hasRemaining()) {
+                    int n = Math.min(bufferSize, window.remaining());
+                    window.get(in, 0, n);
+                    byte[] out = c.update(in, 0, n);
+                    if(out != null) {
+                        writeFully(dest, out, out.length);
+                    }
+                }
+                position += windowSize;
+            }
+            src.position(end);
+            // the tag from the descriptor completes the cipher text
+            byte[] last = c.doFinal(authTag);
+            writeFully(dest, last, last.length);
+        } finally {
+            releaseCipher(c);
+        }
+    }
+
+    private static void writeFully(FileChannel dest, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while(buffer.hasRemaining()) {
+            dest.write(buffer);
+        }
+    }
+
+    // returns null if the descriptor does not describe a chunked resource
+    private ChunkedResourceCipher getChunkedResourceCipher(JSONObject descriptor) throws SpxpCryptoException {
+        if(!descriptor.has("chunk")) {
+            return null;
+        }
+        byte[] iv = decodeBase64Url(descriptor.getString("iv"));
+        byte[] k = decodeBase64Url(descriptor.getString("k"));
+        int chunkSize = descriptor.getInt("chunk");
+        if(iv.length != (A256GCM_IV_SIZE/8) || k.length != A256GCM_KEY_SIZE/8 || chunkSize <= 0 || chunkSize > MAX_RESOURCE_CHUNK_SIZE) {
+            throw new SpxpCryptoException("Invalid IV, key or chunk size");
+        }
+        return new ChunkedResourceCipher(this, executor, new SecretKeySpec(k, AES_JCE_KEY_SPEC), iv, chunkSize);
+    }
+
+    // decrypts the plain text bytes [offset, offset+length) of a resource in the chunked
+    // format, e.g. to answer an HTTP Range request. Only the chunks covering the range are
+    // read and authenticated. Neither src nor dest are closed
+    public void decryptResource(SeekableByteChannel src, OutputStream dest, String json, long offset, long length) throws IOException, SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            decryptResourceRangeInternal(src, dest, json, offset, length);
+            success = true;
+        } finally {
+            recordOperation("decryptResourceRange", startTime, success);
+        }
+    }
+
+    private void decryptResourceRangeInternal(SeekableByteChannel src, OutputStream dest, String json, long offset, long length) throws IOException, SpxpCryptoException {
+        try {
+            ChunkedResourceCipher chunked = getChunkedResourceCipher(new JSONObject(json));
+            if(chunked == null) {
+                throw new SpxpCryptoException("Range decryption requires the chunked resource format");
+            }
+            chunked.decryptRange(src, offset, length, dest);
+        } catch(IllegalArgumentException | JSONException | GeneralSecurityException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // size of the plain text of an encrypted resource, e.g. for a Content-Range header
+    public long getDecryptedResourceSize(long encryptedSize, String json) throws IOException, SpxpCryptoException {
+        try {
+            ChunkedResourceCipher chunked = getChunkedResourceCipher(new JSONObject(json));
+            return chunked != null ? chunked.getDecryptedSize(encryptedSize) : encryptedSize;
+        } catch(IllegalArgumentException | JSONException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    // encrypts src to dest, both from their start, without blocking a thread. Every read
+    // and write is asynchronous, and the encryption runs on the threads of the channel
+    // group. The future completes with the descriptor, or exceptionally with an
+    // IOException or SpxpCryptoException. Neither channel is closed
+    public CompletableFuture<String> encryptResourceAsync(AsynchronousFileChannel src, AsynchronousFileChannel dest, final String uri) {
+        final long startTime = System.nanoTime();
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            // content encryption key
+            KeyGenerator keyGen = newKeyGenerator();
+            keyGen.init(A256GCM_KEY_SIZE, randomSource.current());
+            final SecretKey cek = keyGen.generateKey();
+            // create random IV
+            final byte[] iv = new byte[A256GCM_IV_SIZE / 8];
+            randomSource.current().nextBytes(iv);
+            final AsyncResourcePump.Transform transform;
+            if(resourceChunkSize > 0) {
+                transform = new ChunkedResourceCipher(this, executor, cek, iv, resourceChunkSize).newTransform(Cipher.ENCRYPT_MODE);
+            } else {
+                // init Cipher, released by the transform
+                Cipher c = acquireCipher();
+                try {
+                    c.init(Cipher.ENCRYPT_MODE, cek, new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv));
+                } catch(GeneralSecurityException e) {
+                    releaseCipher(c);
+                    throw e;
+                }
+                transform = new AsyncResourcePump.GcmEncryptTransform(this, c, A256GCM_AUTH_TAG_LENGTH / 8);
+            }
+            new AsyncResourcePump(src, dest, transform, bufferSize).start().whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void value, Throwable exc) {
+                    recordOperation("encryptResourceAsync", startTime, exc == null);
+                    if(exc != null) {
+                        result.completeExceptionally(asyncFailure(exc));
+                        return;
+                    }
+                    result.complete(buildResourceDescriptor(iv, cek, transform.getTag(), uri));
+                }
+            });
+        } catch(GeneralSecurityException e) {
+            recordOperation("encryptResourceAsync", startTime, false);
+            result.completeExceptionally(new SpxpCryptoException(e));
+        }
+        return result;
+    }
+
+    // like encryptResourceAsync(AsynchronousFileChannel, ...), closes both files when done
+    public CompletableFuture<String> encryptResourceAsync(Path src, Path dest, String uri) throws IOException {
+        final AsynchronousFileChannel srcChannel = AsynchronousFileChannel.open(src, StandardOpenOption.READ);
+        final AsynchronousFileChannel destChannel;
+        try {
+            destChannel = AsynchronousFileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch(IOException e) {
+            srcChannel.close();
+            throw e;
+        }
+        return closeWhenComplete(encryptResourceAsync(srcChannel, destChannel, uri), srcChannel, destChannel);
+    }
+
+    // decrypts src to dest, both from their start, without blocking a thread. dest is
+    // truncated to zero length if decryption fails. The future completes exceptionally
+    // with an IOException or SpxpCryptoException. Neither channel is closed
+    public CompletableFuture<Void> decryptResourceAsync(AsynchronousFileChannel src, final AsynchronousFileChannel dest, String json) {
+        final long startTime = System.nanoTime();
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            JSONObject obj = new JSONObject(json);
+            AsyncResourcePump.Transform transform;
+            ChunkedResourceCipher chunked = getChunkedResourceCipher(obj);
+            if(chunked != null) {
+                transform = chunked.newTransform(Cipher.DECRYPT_MODE);
+            } else {
+                byte[] iv = decodeBase64Url(obj.getString("iv"));
+                byte[] k = decodeBase64Url(obj.getString("k"));
+                byte[] authTag = decodeBase64Url(obj.getString("tag"));
+                if(iv.length != (A256GCM_IV_SIZE/8) || authTag.length != A256GCM_AUTH_TAG_LENGTH/8 || k.length != A256GCM_KEY_SIZE/8) {
+                    throw new SpxpCryptoException("Invalid IV, auth tag or key size");
+                }
+                transform = new AsyncResourcePump.GcmDecryptTransform(k, iv, authTag);
+            }
+            new AsyncResourcePump(src, dest, transform, bufferSize).start().whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void value, Throwable exc) {
+                    recordOperation("decryptResourceAsync", startTime, exc == null);
+                    if(exc == null) {
+                        result.complete(null);
+                        return;
+                    }
+                    // do not leave unauthenticated plain text behind
+                    try {
+                        dest.truncate(0);
+                    } catch(IOException e) {
+                        // keep the original exception
+                    }
+                    result.completeExceptionally(asyncFailure(exc));
+                }
+            });
+        } catch(IllegalArgumentException | JSONException e) {
+            recordOperation("decryptResourceAsync", startTime, false);
+            result.completeExceptionally(new SpxpCryptoException(e));
+        } catch(SpxpCryptoException e) {
+            recordOperation("decryptResourceAsync", startTime, false);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // like decryptResourceAsync(AsynchronousFileChannel, ...), closes both files when done
+    public CompletableFuture<Void> decryptResourceAsync(Path src, Path dest, String json) throws IOException {
+        final AsynchronousFileChannel srcChannel = AsynchronousFileChannel.open(src, StandardOpenOption.READ);
+        final AsynchronousFileChannel destChannel;
+        try {
+            destChannel = AsynchronousFileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch(IOException e) {
+            srcChannel.close();
+            throw e;
+        }
+        return closeWhenComplete(decryptResourceAsync(srcChannel, destChannel, json), srcChannel, destChannel);
+    }
+
+    // the returned future completes like the given one after the channels have been closed
+    private static <T> CompletableFuture<T> closeWhenComplete(CompletableFuture<T> future, final AsynchronousFileChannel... channels) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable exc) {
+                for(AsynchronousFileChannel channel : channels) {
+                    try {
+                        channel.close();
+                    } catch(IOException e) {
+                        if(exc == null) {
+                            exc = e;
+                        }
+                    }
+                }
+                if(exc != null) {
+                    result.completeExceptionally(exc);
+                } else {
+                    result.complete(value);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static Throwable asyncFailure(Throwable exc) {
+        if(exc instanceof CompletionException && exc.getCause() != null) {
+            exc = exc.getCause();
+        }
+        if(exc instanceof GeneralSecurityException || exc instanceof IllegalArgumentException) {
+            return new SpxpCryptoException(exc);
+        }
+        return exc;
+    }
+
+    public String encryptAsymmetricJson(String payload, SpxpConnectPublicKey recipientKey /*, String aad*/) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = encryptAsymmetricJsonInternal(payload, recipientKey.getKeyId(), recipientKey.getPublicKey());
+            success = true;
+            return result;
+        } finally {
+            recordOperation("encryptAsymmetricJson", startTime, success);
+        }
+    }
+
+    // prepares a connect public key for encrypting many messages to it
+    public SpxpConnectRecipient createConnectRecipient(SpxpConnectPublicKey recipientKey) throws SpxpCryptoException {
+        if(recipientKey.getPublicKey().length != org.bouncycastle.math.ec.rfc7748.X25519.POINT_SIZE) {
+            throw new SpxpCryptoException("Invalid connect public key size");
+        }
+        SpxpConnectRecipient result = new SpxpConnectRecipient(recipientKey);
+        // clamped scalars are multiples of the cofactor, so any of them maps a point of
+        // small order to zero
+        byte[] scalar = new byte[org.bouncycastle.math.ec.rfc7748.X25519.SCALAR_SIZE];
+        byte[] secret = new byte[org.bouncycastle.math.ec.rfc7748.X25519.POINT_SIZE];
+        scalar[0] = 1;
+        if(!org.bouncycastle.math.ec.rfc7748.X25519.calculateAgreement(scalar, 0, result.getPoint(), 0, secret, 0)) {
+            throw new SpxpCryptoException("Invalid connect public key");
+        }
+        return result;
+    }
+
+    public String encryptAsymmetricJson(String payload, SpxpConnectRecipient recipient) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = encryptAsymmetricJsonInternal(payload, recipient.getKeyId(), recipient.getPoint());
+            success = true;
+            return result;
+        } finally {
+            recordOperation("encryptAsymmetricJson", startTime, success);
+        }
+    }
+
+    private String encryptAsymmetricJsonInternal(String payload, String recipientKeyId, byte[] recipientPoint /*, String aad*/) throws SpxpCryptoException
+    {
+        try
+        {
+            // handle aad
+            byte[] customAAD = null; //aad != null ? aad.getBytes(StandardCharsets.UTF_8) : null;
+            // take or generate ephemeral keypair
+            EphemeralKey ephemeralKey = ephemeralKeyPool != null ? ephemeralKeyPool.take() : new EphemeralKey(newConnectKeyPair());
+            // calculate CEK
+            byte[] ephemeralSecretKey = ephemeralKey.getKeyPair().getSecretKey();
+            byte[] z = calculateECDHKeyAgreement(ephemeralSecretKey, recipientPoint);
+            Arrays.fill(ephemeralSecretKey, (byte) 0);
+            byte[] cekBytes = new byte[A256GCM_KEY_SIZE / 8];
+            calculateJweDerivedKey(z, ConcatKdf.A256GCM_OTHER_INFO, cekBytes, 0, cekBytes.length);
+            SecretKey cek = new SecretKeySpec(cekBytes, AES_JCE_KEY_SPEC);
+            // create random IV
+            byte[] iv = new byte[A256GCM_IV_SIZE / 8];
+            randomSource.current().nextBytes(iv);
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // protected headers
+            String protectedHeadersJson = "{\"enc\":\"A256GCM\"}";
+            // calculate additional authentication data
+            byte[] combinedAAD  = calculateAAD(protectedHeadersJson, customAAD);
+            // init Cipher
+            int mode = Cipher.ENCRYPT_MODE;
+            Cipher c = acquireCipher();
+            byte[] encryptedContent;
+            try {
+                c.init(mode, cek, algoSpec);
+                c.updateAAD(combinedAAD);
+                // encrypt
+                encryptedContent = c.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                releaseCipher(c);
+            }
+            byte[] cipher = Arrays.copyOf(encryptedContent, encryptedContent.length - A256GCM_AUTH_TAG_LENGTH / 8);
+            byte[] authTag = Arrays.copyOfRange(encryptedContent, encryptedContent.length - A256GCM_AUTH_TAG_LENGTH / 8, encryptedContent.length);
+            // prepare JSON JWE result
+            JSONObject result = new JSONObject();
+            result.putOnce("ciphertext", encodeBase64Url(cipher));
+            result.putOnce("protected", encodeBase64Url(protectedHeadersJson.getBytes(StandardCharsets.UTF_8)));
+            /*if(customAAD != null &&  customAAD.length > 0)
+            {
+                result.putOnce("aad", encodeBase64Url(customAAD));
+            }*/
+            JSONObject unprotectedHeader = new JSONObject();
+            unprotectedHeader.putOnce("alg", "ECDH-ES");
+            result.putOnce("unprotected", unprotectedHeader);
+            result.putOnce("tag", encodeBase64Url(authTag));
+            result.putOnce("iv", encodeBase64Url(iv));
+            JSONObject recipientHeader = new JSONObject();
+            recipientHeader.putOnce("kid", recipientKeyId);
+            recipientHeader.putOnce("epk", ephemeralKey.getPublicJWK());
+            JSONObject recipientObject = new JSONObject();
+            recipientObject.putOnce("header", recipientHeader);
+            JSONArray recipients = new JSONArray();
+            recipients.put(recipientObject);
+            result.putOnce("recipients", recipients);
+            return result.toString();
+        }
+        catch(IllegalArgumentException | JSONException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | NoSuchAlgorithmException e)
+        {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    public String decryptAsymmetricJson(String json, SpxpConnectKeyPair keyPair) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = decryptAsymmetricJsonInternal(json, keyPair);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("decryptAsymmetricJson", startTime, success);
+        }
+    }
+
+    private String decryptAsymmetricJsonInternal(String json, SpxpConnectKeyPair keyPair) throws SpxpCryptoException
+    {
+        try
+        {
+            // decode and check headers
+            JSONObject obj = new JSONObject(json);
+            JSONObject unprotectedHeader = obj.getJSONObject("unprotected");
+            String alg = unprotectedHeader.getString("alg");
+            if(!alg.equals("ECDH-ES")) {
+                throw new SpxpCryptoException("Unsupported algortithm");
+            }
+            String protectedHeadersJson = new String(decodeBase64Url(obj.getString("protected")), StandardCharsets.UTF_8);
+            JSONObject protectedHeader = new JSONObject(protectedHeadersJson);
+            String enc = protectedHeader.getString("enc");
+            if(!enc.equals("A256GCM")) {
+                throw new SpxpCryptoException("Unsupported encoding");
+            }
+            // get epk from recipients
+            JSONArray recipients = obj.getJSONArray("recipients");
+            if(recipients.length() != 1) {
+                throw new SpxpCryptoException("Invalid JWE: ECDH-AS algo supports only exactly one recipient");
+            }
+            JSONObject recipient = recipients.getJSONObject(0);
+            JSONObject recipientHeader = recipient.getJSONObject("header");
+            String kid = recipientHeader.getString("kid");
+            JSONObject epk = recipientHeader.getJSONObject("epk");
+            if(!kid.equals(keyPair.getKeyId())) {
+                throw new SpxpCryptoNoSuchKeyException();
+            }
+            SpxpConnectPublicKey ephemeralPublicKey = SpxpCryptoToolsV04.getConnectPublicKey(epk);
+            // calculate CEK, or take it from the cache
+            String derivedKeyCacheKey = null;
+            byte[] cekBytes = null;
+            if(derivedKeyCache != null) {
+                derivedKeyCacheKey = kid + "." + encodeBase64Url(keyPair.getPublicKey()) + "." + encodeBase64Url(ephemeralPublicKey.getPublicKey());
+                cekBytes = derivedKeyCache.get(derivedKeyCacheKey);
+            }
+            boolean derived = cekBytes == null;
+            if(derived) {
+                byte[] z = calculateECDHKeyAgreement(keyPair.getSecretKey(), ephemeralPublicKey.getPublicKey());
+                cekBytes = new byte[A256GCM_KEY_SIZE / 8];
+                calculateJweDerivedKey(z, ConcatKdf.A256GCM_OTHER_INFO, cekBytes, 0, cekBytes.length);
+                Arrays.fill(z, (byte) 0);
+            }
+            SecretKey cek = new SecretKeySpec(cekBytes, AES_JCE_KEY_SPEC);
+            // decode cryptographic material
+            String customAADEncoded = obj.optString("aad", null);
+            byte[] customAAD = customAADEncoded==null ? null : decodeBase64Url(customAADEncoded);
+            byte[] iv = decodeBase64Url(obj.getString("iv"));
+            byte[] cipher = decodeBase64Url(obj.getString("ciphertext"));
+            byte[] authTag = decodeBase64Url(obj.getString("tag"));
+            if(iv.length != (A256GCM_IV_SIZE/8) || authTag.length != A256GCM_AUTH_TAG_LENGTH/8) {
+                throw new SpxpCryptoException("Invalid IV or auth tag size");
+            }
+            // calculate additional authentication data
+            byte[] aad = calculateAAD(protectedHeadersJson, customAAD);
+            // algo spec
+            AlgorithmParameterSpec algoSpec = new GCMParameterSpec(A256GCM_AUTH_TAG_LENGTH, iv);
+            // reconstruct encrypted content as used by java
+            byte[] encryptedContentWithTag = new byte[cipher.length + authTag.length];
+            System.arraycopy(cipher, 0, encryptedContentWithTag, 0, cipher.length);
+            System.arraycopy(authTag, 0, encryptedContentWithTag, cipher.length, authTag.length);
+            // decrypt
+            int mode = Cipher.DECRYPT_MODE;
+            Cipher c = acquireCipher();
+            byte[] decrypted;
+            try {
+                c.init(mode, cek, algoSpec);
+                c.updateAAD(aad);
+                decrypted = c.doFinal(encryptedContentWithTag);
+            } finally {
+                releaseCipher(c);
+            }
+            if(derived && derivedKeyCache != null) {
+                derivedKeyCache.put(derivedKeyCacheKey, cekBytes);
+            }
+            Arrays.fill(cekBytes, (byte) 0);
+            // return as String
+            return new String(decrypted, StandardCharsets.UTF_8);
+        }
+        catch(IllegalArgumentException | JSONException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e)
+        {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    public byte[] generateSymmetricKey(int bitlen)
+    {
+        if(bitlen % 8 != 0)
+        {
+            throw new IllegalArgumentException("key bitlen must be multiple of 8");
+        }
+        byte[] result = new byte[bitlen/8];
+        randomSource.current().nextBytes(result);
+        return result;
+    }
+
+    public String generateRandomKeyId(SpxpCryptoToolsV04.KeyIdSize size)
+    {
+        byte[] result = new byte[size.getSizeInBytes()];
+        randomSource.current().nextBytes(result);
+        return encodeBase64Url(result);
+    }
+
+    public SpxpProfileKeyPair generateProfileKeyPair() {
+        return profileKeyPool != null ? profileKeyPool.take() : newProfileKeyPair();
+    }
+
+    public SpxpConnectKeyPair generateConnectKeyPair() {
+        return connectKeyPool != null ? connectKeyPool.take() : newConnectKeyPair();
+    }
+
+    // generates n key pairs at once, in parallel on the executor if there is one. The key
+    // pair pool is left to single key pairs, a batch would only drain it
+    public List<SpxpProfileKeyPair> generateProfileKeyPairs(int n) throws SpxpCryptoException {
+        checkBatchSize(n);
+        final SpxpProfileKeyPair[] result = new SpxpProfileKeyPair[n];
+        runSliced(n, new SlicedTask() {
+            @Override
+            public void run(int index) {
+                result[index] = newProfileKeyPair();
+            }
+        });
+        return Arrays.asList(result);
+    }
+
+    public List<SpxpConnectKeyPair> generateConnectKeyPairs(int n) throws SpxpCryptoException {
+        checkBatchSize(n);
+        final SpxpConnectKeyPair[] result = new SpxpConnectKeyPair[n];
+        runSliced(n, new SlicedTask() {
+            @Override
+            public void run(int index) {
+                result[index] = newConnectKeyPair();
+            }
+        });
+        return Arrays.asList(result);
+    }
+
+    // generates n 256 bit symmetric keys with random key ids, e.g. new round keys for
+    // many groups
+    public List<SpxpSymmetricKeySpec> generateSymmetricKeySpecs(int n, final SpxpCryptoToolsV04.KeyIdSize keyIdSize) throws SpxpCryptoException {
+        checkBatchSize(n);
+        final SpxpSymmetricKeySpec[] result = new SpxpSymmetricKeySpec[n];
+        runSliced(n, new SlicedTask() {
+            @Override
+            public void run(int index) {
+                result[index] = new SpxpSymmetricKeySpec(generateRandomKeyId(keyIdSize), generateSymmetricKey(A256GCM_KEY_SIZE));
+            }
+        });
+        return Arrays.asList(result);
+    }
+
+    private static void checkBatchSize(int n) {
+        if(n < 0) {
+            throw new IllegalArgumentException("n must not be negative");
+        }
+    }
+
+    private SpxpProfileKeyPair newProfileKeyPair() {
+        byte[] publicKey = new byte[org.bouncycastle.math.ec.rfc8032.Ed25519.PUBLIC_KEY_SIZE];
+        byte[] secretKey = new byte[org.bouncycastle.math.ec.rfc8032.Ed25519.SECRET_KEY_SIZE];
+        org.bouncycastle.math.ec.rfc8032.Ed25519.generatePrivateKey(randomSource.current(), secretKey);
+        org.bouncycastle.math.ec.rfc8032.Ed25519.generatePublicKey(secretKey, 0, publicKey, 0);
+        return new SpxpProfileKeyPair(generateRandomKeyId(SpxpCryptoToolsV04.KeyIdSize.LONG), secretKey, publicKey);
+    }
+
+    private SpxpConnectKeyPair newConnectKeyPair() {
+        byte[] publicKey = new byte[org.bouncycastle.math.ec.rfc8032.Ed25519.PUBLIC_KEY_SIZE];
+        byte[] secretKey = new byte[org.bouncycastle.math.ec.rfc8032.Ed25519.SECRET_KEY_SIZE];
+        org.bouncycastle.math.ec.rfc7748.X25519.generatePrivateKey(randomSource.current(), secretKey);
+        org.bouncycastle.math.ec.rfc7748.X25519.generatePublicKey(secretKey, 0, publicKey, 0);
+        return new SpxpConnectKeyPair(generateRandomKeyId(SpxpCryptoToolsV04.KeyIdSize.LONG), secretKey, publicKey);
+    }
+
+    private byte[] calculateECDHKeyAgreement(byte[] secretKey, byte[] publicKey) throws SpxpCryptoException
+    {
+        byte[] secret = new byte[org.bouncycastle.math.ec.rfc7748.X25519.POINT_SIZE];
+        if (!org.bouncycastle.math.ec.rfc7748.X25519.calculateAgreement(secretKey, 0, publicKey, 0, secret, 0))
+        {
+            throw new SpxpCryptoException("ECDH key agreement failed");
+        }
+        return secret;
+    }
+
+    // derives keyLen bytes straight into out[outOff], see ConcatKdf
+    private void calculateJweDerivedKey(byte[] z, byte[] otherInfo, byte[] out, int outOff, int keyLen) throws SpxpCryptoException
+    {
+        try
+        {
+            ConcatKdf.deriveKey(z, otherInfo, out, outOff, keyLen);
+        }
+        catch(DigestException e)
+        {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    public void signObject(JSONObject value, SpxpProfileKeyPair profileKeyPair) throws SpxpCryptoException {
+        signObject(value, profileKeyPair, null);
+    }
+
+    public void signObject(JSONObject value, SpxpProfileKeyPair profileKeyPair, String aad) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            signObjectInternal(value, profileKeyPair, null, aad);
+            success = true;
+        } finally {
+            recordOperation("signObject", startTime, success);
+        }
+    }
+
+    public void signObjects(Collection<JSONObject> values, SpxpProfileKeyPair profileKeyPair) throws SpxpCryptoException {
+        signObjects(values, profileKeyPair, null);
+    }
+
+    // signs many objects with the same key, e.g. to re-sign all posts after a key rotation.
+    // The objects are signed in parallel on the executor, if any. The public key is derived
+    // from the secret key once up front instead of in every signature. If signing fails,
+    // some of the objects may have been signed already
+    public void signObjects(Collection<JSONObject> values, final SpxpProfileKeyPair profileKeyPair, final String aad) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            final List<JSONObject> objects = new ArrayList<>(values);
+            // an object contained twice would be signed twice concurrently
+            Set<JSONObject> distinct = Collections.newSetFromMap(new IdentityHashMap<JSONObject, Boolean>());
+            for(JSONObject value : objects) {
+                if(value.has("signature") || !distinct.add(value)) {
+                    throw new SpxpCryptoException("Object already signed");
+                }
+            }
+            final byte[] publicKey = new byte[org.bouncycastle.math.ec.rfc8032.Ed25519.PUBLIC_KEY_SIZE];
+            org.bouncycastle.math.ec.rfc8032.Ed25519.generatePublicKey(profileKeyPair.getSecretKey(), 0, publicKey, 0);
+            runSliced(objects.size(), new SlicedTask() {
+                @Override
+                public void run(int index) throws SpxpCryptoException {
+                    signObjectInternal(objects.get(index), profileKeyPair, publicKey, aad);
+                }
+            });
+            success = true;
+        } finally {
+            recordOperation("signObjects", startTime, success);
+        }
+    }
+
+    // publicKey has to be derived from the secret key of the key pair, or null to have
+    // Ed25519 derive it again
+    private void signObjectInternal(JSONObject value, SpxpProfileKeyPair profileKeyPair, byte[] publicKey, String aad) throws SpxpCryptoException {
+        if(value.has("signature")) {
+            throw new SpxpCryptoException("Object already signed");
+        }
+        byte[] signature = new byte[org.bouncycastle.math.ec.rfc8032.Ed25519.SIGNATURE_SIZE];
+        CanonicalJsonWriter canonicalized = canonicalJsonWriter.get();
+        canonicalized.reset();
+        try {
+            canonicalized.writeObject(value, SpxpCryptoToolsV04.OMIT_MEMBERS_SIGN);
+            if(aad != null) {
+                canonicalized.writeRaw(aad);
+            }
+        } catch (JSONException | IOException e) {
+            throw new SpxpCryptoException("Error canonicalizing object", e);
+        }
+        try {
+            if(publicKey != null) {
+                org.bouncycastle.math.ec.rfc8032.Ed25519.sign(profileKeyPair.getSecretKey(), 0, publicKey, 0, canonicalized.getBuffer(), 0, canonicalized.getLength(), signature, 0);
+            } else {
+                org.bouncycastle.math.ec.rfc8032.Ed25519.sign(profileKeyPair.getSecretKey(), 0, canonicalized.getBuffer(), 0, canonicalized.getLength(), signature, 0);
+            }
+            JSONObject signatureObject = new JSONObject();
+            signatureObject.put("key", profileKeyPair.getKeyId());
+            signatureObject.put("sig", encodeBase64Url(signature));
+            if(aad != null) {
+                signatureObject.put("aad", aad);
+            }
+            value.put("signature", signatureObject);
+        } catch(IllegalArgumentException | IllegalStateException | JSONException e) {
+            throw new SpxpCryptoException(e);
+        }
+    }
+
+    public boolean verifySignature(JSONObject signedObject, SpxpProfilePublicKey publicKey, String requiredAAD, Collection<String> requiredPermissions) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean result = verifySignatureInternal(signedObject, publicKey, requiredAAD, requiredPermissions);
+            success = true;
+            return result;
+        } finally {
+            recordOperation("verifySignature", startTime, success);
+        }
+    }
+
+    // verifies a page of signed objects, e.g. the posts of a feed, and returns the result
+    // for each of them in the same order. The objects are verified in parallel on the
+    // executor, if any, and a certificate shared by the objects is only verified once
+    // An object whose certificate cannot be parsed is reported as false, where
+    // verifySignature() throws, so that one bad object does not fail the whole page
+    public boolean[] verifySignatures(final List<JSONObject> signedObjects, final SpxpProfilePublicKey publicKey, final String requiredAAD, final Collection<String> requiredPermissions) throws SpxpCryptoException {
+        long startTime = System.nanoTime();
+        boolean success = false;
+        try {
+            final boolean[] result = new boolean[signedObjects.size()];
+            runSliced(result.length, new SlicedTask() {
+                @Override
+                public void run(int index) {
+                    try {
+                        result[index] = verifySignatureInternal(signedObjects.get(index), publicKey, requiredAAD, requiredPermissions);
+                    } catch(SpxpCryptoException e) {
+                        // a malformed certificate only invalidates this object
+                        result[index] = false;
+                    }
+                }
+            });
+            success = true;
+            return result;
+        } finally {
+            recordOperation("verifySignatures", startTime, success);
+        }
+    }
+
+    private boolean verifySignatureInternal(JSONObject signedObject, SpxpProfilePublicKey publicKey, String requiredAAD, Collection<String> requiredPermissions) throws SpxpCryptoException {
+        JSONObject signature = signedObject.optJSONObject("signature");
+        if(signature == null) {
+            return false;
+        }
+        String sigStr = signature.optString("sig", null);
+        if(sigStr == null) {
+            return false;
+        }
+        String aadStr = signature.optString("aad", null);
+        if(requiredAAD != null && !requiredAAD.equals(aadStr)) {
+            return false;
+        }
+        byte[] sig;
+        try {
+            sig = decodeBase64Url(sigStr);
+        } catch(IllegalArgumentException e) {
+            return false;
+        }
+        if(sig == null || sig.length != org.bouncycastle.math.ec.rfc8032.Ed25519.SIGNATURE_SIZE) {
+            return false;
+        }
+        Object keyObj = signature.opt("key");
+        if(keyObj == null) {
+            return false;
+        }
+        byte[] signingPublicKey;
+        if(keyObj instanceof String) {
+            if(publicKey.getKeyId().equals((String)keyObj)) {
+                signingPublicKey = publicKey.getPublicKey();
+            } else {
+                return false;
+            }
+        } else if(keyObj instanceof JSONObject) {
+            if(requiredPermissions == null) {
+                return false;
+            }
+            JSONObject certChain = (JSONObject)keyObj;
+            SpxpProfilePublicKey signingAuthorityPublicKey;
+            try {
+                if(!certChain.getJSONArray("grant").toList().containsAll(requiredPermissions)) {
+                    return false;
+                }
+                signingAuthorityPublicKey = SpxpCryptoToolsV04.getProfilePublicKey(certChain.getJSONObject("publicKey"));
+            } catch(IllegalArgumentException | JSONException e) {
+                return false;
+            }
+            ArrayList<String> requiredSignerPermissions = new ArrayList<>(requiredPermissions.size()+1);
+            requiredSignerPermissions.addAll(requiredPermissions);
+            if(requiredPermissions.contains("grant")) {
+                if(!requiredSignerPermissions.contains("ca")) {
+                    requiredSignerPermissions.add("ca");
+                }
+            } else {
+                if(!requiredSignerPermissions.contains("grant")) {
+                    requiredSignerPermissions.add("grant");
+                }
+            }
+            if(!verifyCertificate(certChain, publicKey, requiredAAD, requiredSignerPermissions)) {
+                return false;
+            }
+            signingPublicKey = signingAuthorityPublicKey.getPublicKey();
+        } else {
+            return false;
+        }
+        if(signingPublicKey == null || signingPublicKey.length != org.bouncycastle.math.ec.rfc8032.Ed25519.PUBLIC_KEY_SIZE) {
+            return false;
+        }
+        // the writer is only taken once the certificate chain above has been verified, so
+        // the recursion does not overwrite it
+        CanonicalJsonWriter canonicalized = canonicalJsonWriter.get();
+        canonicalized.reset();
+        try {
+            canonicalized.writeObject(signedObject, SpxpCryptoToolsV04.OMIT_MEMBERS_VERIFY);
+            if(aadStr != null) {
+                canonicalized.writeRaw(aadStr);
+            }
+        } catch (JSONException | IOException e) {
+            return false;
+        }
+        try {
+            return org.bouncycastle.math.ec.rfc8032.Ed25519.verify(sig, 0, signingPublicKey, 0, canonicalized.getBuffer(), 0, canonicalized.getLength());
+        } catch(IllegalArgumentException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private interface SlicedTask {
+
+        void run(int index) throws SpxpCryptoException;
+
+    }
+
+    // runs task for every index in [0, count), in one slice per processor on the executor
+    // if there is one. The calling thread takes care of the first slice itself
+    private void runSliced(final int count, final SlicedTask task) throws SpxpCryptoException {
+        int slices = executor != null ? Math.min(Runtime.getRuntime().availableProcessors(), count) : 1;
+        if(slices <= 1) {
+            for(int i = 0; i < count; i++) {
+                task.run(i);
+            }
+            return;
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>(slices - 1);
+        for(int slice = 1; slice < slices; slice++) {
+            final int from = (int) ((long) count * slice / slices);
+            final int to = (int) ((long) count * (slice + 1) / slices);
+            futures.add(CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = from; i < to; i++) {
+                            task.run(i);
+                        }
+                    } catch(SpxpCryptoException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, executor));
+        }
+        int firstSliceEnd = count / slices;
+        for(int i = 0; i < firstSliceEnd; i++) {
+            task.run(i);
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof SpxpCryptoException) {
+                throw (SpxpCryptoException) e.getCause();
+            }
+            throw new SpxpCryptoException(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    // verifies a certificate chain, or finds it in the certificate cache
+    private boolean verifyCertificate(JSONObject certChain, SpxpProfilePublicKey publicKey, String requiredAAD, Collection<String> requiredPermissions) throws SpxpCryptoException {
+        String cacheKey = certificateCache != null ? certificateCacheKey(certChain, publicKey, requiredAAD, requiredPermissions) : null;
+        if(cacheKey != null && certificateCache.isVerified(cacheKey)) {
+            return true;
+        }
+        boolean result = verifySignatureInternal(certChain, publicKey, requiredAAD, requiredPermissions);
+        if(result && cacheKey != null) {
+            certificateCache.addVerified(cacheKey);
+        }
+        return result;
+    }
+
+    // digest over everything the verification of certChain depends on, or null if it
+    // cannot be computed, in which case the chain is verified without the cache
+    private String certificateCacheKey(JSONObject certChain, SpxpProfilePublicKey publicKey, String requiredAAD, Collection<String> requiredPermissions) {
+        try {
+            MessageDigest md = CERTIFICATE_CACHE_KEY_DIGEST.get();
+            // a previous call may have failed halfway
+            md.reset();
+            // the whole certificate, including its signature and nested certificates
+            CanonicalJsonWriter canonicalized = canonicalJsonWriter.get();
+            canonicalized.reset();
+            canonicalized.writeObject(certChain, null);
+            updateField(md, canonicalized.getBuffer(), canonicalized.getLength());
+            canonicalized.reset();
+            byte[] keyId = publicKey.getKeyId().getBytes(StandardCharsets.UTF_8);
+            updateField(md, keyId, keyId.length);
+            updateField(md, publicKey.getPublicKey(), publicKey.getPublicKey().length);
+            if(requiredAAD != null) {
+                byte[] aad = requiredAAD.getBytes(StandardCharsets.UTF_8);
+                updateField(md, aad, aad.length);
+            } else {
+                md.update((byte) 0);
+            }
+            for(String permission : new TreeSet<>(requiredPermissions)) {
+                byte[] p = permission.getBytes(StandardCharsets.UTF_8);
+                updateField(md, p, p.length);
+            }
+            return encodeBase64Url(md.digest());
+        } catch(JSONException | IOException e) {
+            return null;
+        }
+    }
+
+    // length prefixed, so that adjacent fields cannot be shifted into each other
+    private static void updateField(MessageDigest md, byte[] data, int length) {
+        md.update((byte) 1);
+        md.update((byte) (length >>> 24));
+        md.update((byte) (length >>> 16));
+        md.update((byte) (length >>> 8));
+        md.update((byte) length);
+        md.update(data, 0, length);
+    }
+
+}
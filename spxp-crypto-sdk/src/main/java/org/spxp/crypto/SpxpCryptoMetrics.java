@@ -0,0 +1,17 @@
+package org.spxp.crypto;
+
+public interface SpxpCryptoMetrics {
+
+    public static final SpxpCryptoMetrics NONE = new SpxpCryptoMetrics() {
+        @Override
+        public void operationCompleted(String operation, long durationNanos, boolean success) {
+            // discard
+        }
+    };
+
+    // called after every public operation of a SpxpCryptoEngine, e.g. with operation
+    // "decryptSymmetricJson". success is false if the operation threw an exception.
+    // Implementations must be thread safe and should return quickly
+    public void operationCompleted(String operation, long durationNanos, boolean success);
+
+}
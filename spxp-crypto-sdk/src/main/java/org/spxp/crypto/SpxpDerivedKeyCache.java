@@ -0,0 +1,87 @@
+package org.spxp.crypto;
+
+import java.util.Arrays;
+
+// Bounded LRU cache of content encryption keys derived with ECDH-ES, so that messages
+// sharing an ephemeral key, like retransmissions and duplicate deliveries, skip the
+// X25519 agreement and the Concat KDF. The key is the recipient key id and public key
+// together with the ephemeral public key of the sender, and only keys that have
+// decrypted a message successfully are cached.
+// Entries expire after the configured time to live. Keys leaving the cache are zeroised;
+// callers only ever get a copy. Call invalidateAll() when a connect key is rotated.
+public class SpxpDerivedKeyCache {
+
+    private final LruCache<String, byte[]> cache;
+
+    SpxpDerivedKeyCache(int maxEntries, long ttlNanos) {
+        this.cache = new LruCache<>(maxEntries, ttlNanos, new LruCache.RemovalListener<byte[]>() {
+            @Override
+            public void removed(byte[] value) {
+                synchronized(value) {
+                    Arrays.fill(value, (byte) 0);
+                }
+            }
+        });
+    }
+
+    // returns a copy of the cached key, or null
+    byte[] get(String key) {
+        byte[] result = cache.get(key);
+        if(result == null) {
+            return null;
+        }
+        byte[] copy;
+        synchronized(result) {
+            copy = Arrays.copyOf(result, result.length);
+        }
+        // zeroised by a concurrent eviction between get() and the copy
+        return isZero(copy) ? null : copy;
+    }
+
+    void put(String key, byte[] derivedKey) {
+        cache.put(key, Arrays.copyOf(derivedKey, derivedKey.length));
+    }
+
+    private static boolean isZero(byte[] value) {
+        int acc = 0;
+        for(byte b : value) {
+            acc |= b;
+        }
+        return acc == 0;
+    }
+
+    // drops all expired entries now. get() only drops the entry it looks at, and put() only
+    // the expired entries at the least recently used end
+    public void purgeExpired() {
+        cache.purgeExpired();
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    public long getExpirationCount() {
+        return cache.getExpirationCount();
+    }
+
+}
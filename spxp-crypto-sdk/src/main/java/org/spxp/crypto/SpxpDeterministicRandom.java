@@ -0,0 +1,74 @@
+package org.spxp.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+// Reproducible randomness for benchmarks and tests: a single Hash_DRBG with SHA-256
+// whose entropy is derived from a seed, so the same seed yields the same sequence of
+// IVs, keys and key ids, as long as the operations run in the same order, e.g. on one
+// thread. All threads share the one DRBG.
+// Never use this in production: everything "random" is predictable from the seed.
+public class SpxpDeterministicRandom implements SpxpRandomSource {
+
+    private final SecureRandom random;
+
+    public SpxpDeterministicRandom(long seed) {
+        byte[] nonce = ByteBuffer.allocate(8).putLong(seed).array();
+        this.random = new SP800SecureRandomBuilder(new SeedEntropySourceProvider(seed))
+                .buildHash(new SHA256Digest(), nonce, false);
+    }
+
+    @Override
+    public SecureRandom current() {
+        return random;
+    }
+
+    // expands the seed with SHA-256 in counter mode
+    private static final class SeedEntropySourceProvider implements EntropySourceProvider {
+
+        private final long seed;
+
+        private long counter = 0;
+
+        SeedEntropySourceProvider(long seed) {
+            this.seed = seed;
+        }
+
+        @Override
+        public EntropySource get(final int bitsRequired) {
+            return new EntropySource() {
+                @Override
+                public boolean isPredictionResistant() {
+                    return false;
+                }
+
+                @Override
+                public byte[] getEntropy() {
+                    byte[] result = new byte[(bitsRequired + 7) / 8];
+                    SHA256Digest digest = new SHA256Digest();
+                    byte[] block = new byte[digest.getDigestSize()];
+                    for(int offset = 0; offset < result.length; offset += block.length) {
+                        synchronized(SeedEntropySourceProvider.this) {
+                            digest.update(ByteBuffer.allocate(16).putLong(seed).putLong(counter++).array(), 0, 16);
+                        }
+                        digest.doFinal(block, 0);
+                        System.arraycopy(block, 0, result, offset, Math.min(block.length, result.length - offset));
+                    }
+                    return result;
+                }
+
+                @Override
+                public int entropySize() {
+                    return bitsRequired;
+                }
+            };
+        }
+
+    }
+
+}
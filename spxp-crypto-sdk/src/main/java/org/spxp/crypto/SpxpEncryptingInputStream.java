@@ -0,0 +1,66 @@
+package org.spxp.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.SecretKey;
+
+// The cipher text of a resource, encrypted while it is being read, e.g. to hand it to an
+// upload client. The resource descriptor becomes available once the stream has been
+// read to its end.
+public class SpxpEncryptingInputStream extends FilterInputStream {
+
+    private final SpxpCryptoEngine engine;
+
+    // null for the chunked format
+    private final GcmEncryptingInputStream gcm;
+
+    private final byte[] iv;
+
+    private final SecretKey cek;
+
+    private final String uri;
+
+    private boolean drained = false;
+
+    SpxpEncryptingInputStream(InputStream cipherText, GcmEncryptingInputStream gcm, SpxpCryptoEngine engine, byte[] iv, SecretKey cek, String uri) {
+        super(cipherText);
+        this.engine = engine;
+        this.gcm = gcm;
+        this.iv = iv;
+        this.cek = cek;
+        this.uri = uri;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int result = super.read();
+        if(result < 0) {
+            drained = true;
+        }
+        return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int result = super.read(b, off, len);
+        if(result < 0) {
+            drained = true;
+        }
+        return result;
+    }
+
+    public boolean isDrained() {
+        return drained;
+    }
+
+    // the descriptor of the resource, like returned by encryptResource()
+    public String getDescriptor() {
+        if(!drained) {
+            throw new IllegalStateException("The stream has not been read to its end");
+        }
+        return engine.buildResourceDescriptor(iv, cek, gcm != null ? gcm.getTag() : null, uri);
+    }
+
+}
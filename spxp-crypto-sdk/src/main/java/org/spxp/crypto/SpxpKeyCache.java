@@ -0,0 +1,185 @@
+package org.spxp.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+// Bounded LRU cache of long living AES keys, like round keys, by key id. Every entry
+// holds a ready to use SecretKey and a few Cipher instances that have already been
+// initialised with this key. JCE providers keep the expanded AES key schedule inside
+// the Cipher and skip the key expansion when it is re-initialised with the same key,
+// so only the IV changes per operation.
+// Entries leaving the cache are zeroised as soon as no operation is using them any more.
+// Call invalidate() when a key is rotated or revoked.
+public class SpxpKeyCache {
+
+    private static final String AES_JCE_KEY_SPEC = "AES";
+
+    private final String transformation;
+
+    private final Provider provider;
+
+    private final int maxIdleCiphers;
+
+    private final LruCache<String, CachedKey> cache;
+
+    SpxpKeyCache(int maxEntries, String transformation, Provider provider) {
+        this.transformation = transformation;
+        this.provider = provider;
+        this.maxIdleCiphers = Runtime.getRuntime().availableProcessors();
+        this.cache = new LruCache<>(maxEntries, new LruCache.RemovalListener<CachedKey>() {
+            @Override
+            public void removed(CachedKey value) {
+                value.destroy();
+            }
+        });
+    }
+
+    // returns the entry for keyId, retained for one operation, which must be finished
+    // with CachedKey.release(). Returns null if the key material cannot be cached
+    CachedKey acquire(String keyId, byte[] keyBytes) {
+        if(keyId == null || keyBytes == null) {
+            return null;
+        }
+        CachedKey result = cache.get(keyId);
+        if(result != null && result.matches(keyBytes) && result.retain()) {
+            return result;
+        }
+        // unknown, rotated under the same key id or just evicted
+        result = new CachedKey(keyBytes);
+        result.retain();
+        cache.put(keyId, result);
+        return result;
+    }
+
+    CachedKey acquire(String keyId, SecretKey key) {
+        if(key == null || !AES_JCE_KEY_SPEC.equals(key.getAlgorithm())) {
+            return null;
+        }
+        byte[] keyBytes = key.getEncoded();
+        try {
+            return acquire(keyId, keyBytes);
+        } finally {
+            if(keyBytes != null) {
+                Arrays.fill(keyBytes, (byte) 0);
+            }
+        }
+    }
+
+    // removes and zeroises the key with the given id, e.g. after a key rotation
+    public void invalidate(String keyId) {
+        cache.remove(keyId);
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    final class CachedKey {
+
+        private final byte[] keyBytes;
+
+        private final SecretKeySpec key;
+
+        private final ArrayDeque<Cipher> idleCiphers = new ArrayDeque<>();
+
+        private int users = 0;
+
+        private boolean destroyed = false;
+
+        private CachedKey(byte[] keyBytes) {
+            this.keyBytes = keyBytes.clone();
+            this.key = new SecretKeySpec(keyBytes, AES_JCE_KEY_SPEC);
+        }
+
+        private boolean matches(byte[] otherKeyBytes) {
+            return MessageDigest.isEqual(keyBytes, otherKeyBytes);
+        }
+
+        private synchronized boolean retain() {
+            if(destroyed) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        SecretKey getKey() {
+            return key;
+        }
+
+        // a Cipher that has most likely been initialised with this key before. Like with
+        // SpxpCipherCache, it must be initialised with getKey() and a fresh IV before use
+        Cipher acquireCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+            synchronized(this) {
+                Cipher result = idleCiphers.pollFirst();
+                if(result != null) {
+                    return result;
+                }
+            }
+            try {
+                return provider != null ? Cipher.getInstance(transformation, provider) : Cipher.getInstance(transformation);
+            } catch(NoSuchAlgorithmException | NoSuchPaddingException e) {
+                release(null);
+                throw e;
+            }
+        }
+
+        // ends the operation started by SpxpKeyCache.acquire() and takes back its Cipher
+        synchronized void release(Cipher cipher) {
+            users--;
+            if(destroyed) {
+                if(users == 0) {
+                    wipe();
+                }
+                return;
+            }
+            if(cipher != null && idleCiphers.size() < maxIdleCiphers) {
+                idleCiphers.addFirst(cipher);
+            }
+        }
+
+        private synchronized void destroy() {
+            destroyed = true;
+            idleCiphers.clear();
+            if(users == 0) {
+                wipe();
+            }
+        }
+
+        // the SecretKeySpec and released Ciphers keep their own copies of the key, which
+        // cannot be cleared through the JCE API. They are unreachable from here on
+        private void wipe() {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+
+    }
+
+}
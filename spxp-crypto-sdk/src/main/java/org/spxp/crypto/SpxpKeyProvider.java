@@ -1,9 +1,33 @@
 package org.spxp.crypto;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
 import javax.crypto.SecretKey;
 
 public interface SpxpKeyProvider {
 
     public SecretKey getKey(String keyId) throws SpxpCryptoNoSuchKeyException;
-    
-}
\ No newline at end of file
+
+    // Resolves several key ids at once and returns the known keys by key id. Unknown
+    // key ids are simply missing from the result. Used when decrypting a JWE with
+    // multiple recipients, so that providers backed by a remote key store can resolve
+    // all candidates in a single round trip by overriding this method. The default asks
+    // getKey() for every key id and leaves out the ones it fails for
+    public default Map<String, SecretKey> getKeys(Set<String> keyIds) {
+        Map<String, SecretKey> result = new HashMap<>();
+        for(String keyId : keyIds) {
+            try {
+                SecretKey key = getKey(keyId);
+                if(key != null) {
+                    result.put(keyId, key);
+                }
+            } catch(Exception e) {
+                // unknown key id
+            }
+        }
+        return result;
+    }
+
+}
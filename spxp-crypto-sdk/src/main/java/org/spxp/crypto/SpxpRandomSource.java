@@ -0,0 +1,15 @@
+package org.spxp.crypto;
+
+import java.security.SecureRandom;
+
+// Source of all randomness of a SpxpCryptoEngine: IVs, key ids, content encryption keys
+// and key pairs. The default is a single SecureRandom shared by all threads, see also
+// SpxpThreadLocalDrbg and SpxpDeterministicRandom.
+public interface SpxpRandomSource {
+
+    // returns the SecureRandom to draw from on the calling thread. The engine does not
+    // keep the result or hand it to other threads, so implementations may return a
+    // different instance per thread. Implementations must be thread safe
+    public SecureRandom current();
+
+}
@@ -0,0 +1,134 @@
+package org.spxp.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.prng.SP800SecureRandom;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+// Randomness from one DRBG (NIST SP 800-90A) per thread, so threads never wait for each
+// other on a shared SecureRandom. This is the "DRBG" SecureRandom of the platform where
+// available (Java 9 and later, Hash_DRBG with SHA-256 by default), otherwise the
+// Hash_DRBG with SHA-256 of BouncyCastle instantiated from the entropy source.
+// Every DRBG gets the thread mixed in when it is created, and is reseeded once the reseed
+// interval has passed, with fresh bytes of the entropy source as additional input. The
+// entropy source, by default the platform SecureRandom, is only used for that.
+public class SpxpThreadLocalDrbg implements SpxpRandomSource {
+
+    public static final long DEFAULT_RESEED_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    private static final int RESEED_INPUT_SIZE = 32;
+
+    private final SecureRandom entropySource;
+
+    private final long reseedIntervalNanos;
+
+    private final boolean platformDrbg;
+
+    private final AtomicLong instances = new AtomicLong();
+
+    private final ThreadLocal<Drbg> drbg = new ThreadLocal<Drbg>() {
+        @Override
+        protected Drbg initialValue() {
+            return newDrbg();
+        }
+    };
+
+    private static final class Drbg {
+
+        private final SecureRandom random;
+
+        // the BouncyCastle DRBG, which only forwards setSeed() to its entropy source
+        private final SP800SecureRandom fallback;
+
+        private long lastReseed = System.nanoTime();
+
+        Drbg(SecureRandom random) {
+            this.random = random;
+            this.fallback = null;
+        }
+
+        Drbg(SP800SecureRandom fallback) {
+            this.random = fallback;
+            this.fallback = fallback;
+        }
+
+        void reseed(byte[] input) {
+            if(fallback != null) {
+                fallback.reseed(input);
+            } else {
+                // setSeed() reseeds the platform DRBG, the bytes passed are additional input
+                random.setSeed(input);
+            }
+        }
+
+    }
+
+    public SpxpThreadLocalDrbg() {
+        this(new SecureRandom(), DEFAULT_RESEED_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public SpxpThreadLocalDrbg(SecureRandom entropySource, long reseedInterval, TimeUnit unit) {
+        this(entropySource, reseedInterval, unit, true);
+    }
+
+    // platformDrbg false always takes the BouncyCastle DRBG, as on Java 8
+    SpxpThreadLocalDrbg(SecureRandom entropySource, long reseedInterval, TimeUnit unit, boolean platformDrbg) {
+        if(entropySource == null) {
+            throw new IllegalArgumentException("entropySource must not be null");
+        }
+        if(reseedInterval <= 0) {
+            throw new IllegalArgumentException("reseedInterval must be positive");
+        }
+        this.entropySource = entropySource;
+        this.reseedIntervalNanos = unit.toNanos(reseedInterval);
+        this.platformDrbg = platformDrbg;
+    }
+
+    @Override
+    public SecureRandom current() {
+        Drbg result = drbg.get();
+        long now = System.nanoTime();
+        if(now - result.lastReseed >= reseedIntervalNanos) {
+            byte[] input = new byte[RESEED_INPUT_SIZE];
+            entropySource.nextBytes(input);
+            result.reseed(input);
+            result.lastReseed = now;
+        }
+        return result.random;
+    }
+
+    private Drbg newDrbg() {
+        Thread thread = Thread.currentThread();
+        byte[] name = thread.getName().getBytes(StandardCharsets.UTF_8);
+        // distinct for every DRBG of this source, even if threads share a name
+        byte[] personalization = ByteBuffer.allocate(8 + 8 + name.length)
+                .putLong(instances.incrementAndGet())
+                .putLong(thread.getId())
+                .put(name)
+                .array();
+        if(platformDrbg) {
+            try {
+                SecureRandom result = SecureRandom.getInstance("DRBG");
+                byte[] input = new byte[RESEED_INPUT_SIZE];
+                entropySource.nextBytes(input);
+                result.setSeed(input);
+                result.setSeed(personalization);
+                return new Drbg(result);
+            } catch(NoSuchAlgorithmException e) {
+                // Java 8
+            }
+        }
+        byte[] nonce = new byte[16];
+        entropySource.nextBytes(nonce);
+        return new Drbg(new SP800SecureRandomBuilder(entropySource, false)
+                .setPersonalizationString(personalization)
+                .buildHash(new SHA256Digest(), nonce, false));
+    }
+
+}
@@ -0,0 +1,36 @@
+package org.spxp.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RestrainLastNBytesOutputStreamTest {
+
+    @Test
+    public void mixedSingleAndBulkWrites() throws Exception {
+        Random random = new Random(42);
+        for(int run = 0; run < 200; run++) {
+            byte[] data = new byte[random.nextInt(200)];
+            random.nextBytes(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RestrainLastNBytesOutputStream rlnbos = new RestrainLastNBytesOutputStream(out, 16);
+            int pos = 0;
+            while(pos < data.length) {
+                int len = Math.min(data.length - pos, random.nextInt(40));
+                if(len == 1 && random.nextBoolean()) {
+                    rlnbos.write(data[pos]);
+                } else {
+                    rlnbos.write(data, pos, len);
+                }
+                pos += len;
+            }
+            int split = Math.max(0, data.length - 16);
+            Assert.assertArrayEquals(Arrays.copyOf(data, split), out.toByteArray());
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, split, data.length), rlnbos.getRestrainedBytes());
+        }
+    }
+
+}
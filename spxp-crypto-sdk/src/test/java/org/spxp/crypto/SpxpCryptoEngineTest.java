@@ -0,0 +1,1099 @@
+package org.spxp.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.crypto.prng.SP800SecureRandom;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpxpCryptoEngineTest {
+
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+
+    private static SpxpKeyProvider keyProvider(final SpxpSymmetricKeySpec... keys) {
+        return new SpxpKeyProvider() {
+            @Override
+            public SecretKey getKey(String keyId) throws SpxpCryptoNoSuchKeyException {
+                for(SpxpSymmetricKeySpec key : keys) {
+                    if(key.getKeyId().equals(keyId)) {
+                        return new SecretKeySpec(key.getSymmetricKey(), "AES");
+                    }
+                }
+                throw new SpxpCryptoNoSuchKeyException();
+            }
+        };
+    }
+
+    @Test
+    public void encryptSymmetricCompactEngineDecryptV03() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().cipherCache(false).build();
+        SpxpSymmetricKeySpec key = new SpxpSymmetricKeySpec("test", engine.generateSymmetricKey(256));
+        String compact = engine.encryptSymmetricCompact(MESSAGE, key);
+        Assert.assertEquals(MESSAGE, SpxpCryptoToolsV03.decryptSymmetricCompact(compact, keyProvider(key)));
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricCompact(compact, keyProvider(key)));
+    }
+
+    @Test
+    public void encryptSymmetricCompactByteBuffers() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(16).build();
+        SpxpSymmetricKeySpec key = new SpxpSymmetricKeySpec("test", engine.generateSymmetricKey(256));
+        for(int size : new int[] {0, 1, 2, 3, 47, 48, 1000}) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            ByteBuffer payload = ByteBuffer.allocateDirect(size);
+            payload.put(data).flip();
+            ByteBuffer compact = ByteBuffer.allocateDirect(engine.getEncryptedCompactLength(size, key));
+            Assert.assertEquals(compact.capacity(), engine.encryptSymmetricCompact(payload, key, compact));
+            Assert.assertFalse(payload.hasRemaining());
+            compact.flip();
+            Assert.assertEquals(size, engine.getDecryptedCompactLength(compact));
+            ByteBuffer decrypted = ByteBuffer.allocateDirect(size);
+            Assert.assertEquals(size, engine.decryptSymmetricCompact(compact, keyProvider(key), decrypted));
+            decrypted.flip();
+            byte[] result = new byte[size];
+            decrypted.get(result);
+            Assert.assertArrayEquals(data, result);
+        }
+        // buffers smaller than a GCM block
+        for(int bufferSize = 1; bufferSize < 16; bufferSize++) {
+            SpxpCryptoEngine small = SpxpCryptoEngine.builder().bufferSize(bufferSize).build();
+            for(int size : new int[] {0, 1, 15, 16, 17, 100}) {
+                byte[] data = new byte[size];
+                new Random(size).nextBytes(data);
+                String compact = small.encryptSymmetricCompact(new String(data, StandardCharsets.ISO_8859_1), key);
+                Assert.assertEquals(new String(data, StandardCharsets.ISO_8859_1), SpxpCryptoToolsV03.decryptSymmetricCompact(compact, keyProvider(key)));
+                ByteBuffer payload = ByteBuffer.wrap(data);
+                ByteBuffer dest = ByteBuffer.allocate(small.getEncryptedCompactLength(size, key));
+                Assert.assertEquals(dest.capacity(), small.encryptSymmetricCompact(payload, key, dest));
+                dest.flip();
+                ByteBuffer decrypted = ByteBuffer.allocate(size);
+                Assert.assertEquals(size, engine.decryptSymmetricCompact(dest, keyProvider(key), decrypted));
+                Assert.assertArrayEquals(data, decrypted.array());
+            }
+        }
+    }
+
+    @Test
+    public void encryptSymmetricCompactV03DecryptBytes() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(7).build();
+        SpxpSymmetricKeySpec key = new SpxpSymmetricKeySpec("test", engine.generateSymmetricKey(256));
+        byte[] compact = SpxpCryptoToolsV03.encryptSymmetricCompact(MESSAGE, key).getBytes(StandardCharsets.US_ASCII);
+        Assert.assertArrayEquals(MESSAGE.getBytes(StandardCharsets.UTF_8), engine.decryptSymmetricCompact(compact, keyProvider(key)));
+        compact[compact.length - 30] ^= 1;
+        try {
+            engine.decryptSymmetricCompact(compact, keyProvider(key));
+            Assert.fail("tampered cipher text must not decrypt");
+        } catch(SpxpCryptoException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void keyCache() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().keyCacheSize(2).build();
+        SpxpKeyCache keyCache = engine.getKeyCache();
+        SpxpSymmetricKeySpec key1 = new SpxpSymmetricKeySpec("test1", engine.generateSymmetricKey(256));
+        SpxpSymmetricKeySpec key2 = new SpxpSymmetricKeySpec("test2", engine.generateSymmetricKey(256));
+        SpxpSymmetricKeySpec key3 = new SpxpSymmetricKeySpec("test3", engine.generateSymmetricKey(256));
+        for(int i = 0; i < 3; i++) {
+            String compact = engine.encryptSymmetricCompact(MESSAGE, key1);
+            Assert.assertEquals(MESSAGE, engine.decryptSymmetricCompact(compact, keyProvider(key1)));
+        }
+        Assert.assertEquals(1, keyCache.size());
+        Assert.assertEquals(1, keyCache.getMissCount());
+        Assert.assertEquals(5, keyCache.getHitCount());
+        List<SpxpSymmetricKeySpec> recipientKeys = new ArrayList<>();
+        recipientKeys.add(key2);
+        recipientKeys.add(key3);
+        String json = engine.encryptSymmetricJson(MESSAGE, recipientKeys);
+        Assert.assertEquals(2, keyCache.size());
+        Assert.assertEquals(1, keyCache.getEvictionCount());
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricJson(json, keyProvider(key3)));
+        // a rotated key with the same key id replaces the cached one
+        SpxpSymmetricKeySpec rotated = new SpxpSymmetricKeySpec("test3", engine.generateSymmetricKey(256));
+        String compact = engine.encryptSymmetricCompact(MESSAGE, rotated);
+        Assert.assertEquals(MESSAGE, SpxpCryptoToolsV03.decryptSymmetricCompact(compact, keyProvider(rotated)));
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricCompact(compact, keyProvider(rotated)));
+        keyCache.invalidate("test3");
+        Assert.assertEquals(1, keyCache.size());
+        keyCache.invalidateAll();
+        Assert.assertEquals(0, keyCache.size());
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricCompact(compact, keyProvider(rotated)));
+    }
+
+    @Test
+    public void encryptSymmetricJsonV03DecryptEngine() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().build();
+        SpxpSymmetricKeySpec key1 = new SpxpSymmetricKeySpec("test1", engine.generateSymmetricKey(256));
+        SpxpSymmetricKeySpec key2 = new SpxpSymmetricKeySpec("test2", engine.generateSymmetricKey(256));
+        List<SpxpSymmetricKeySpec> recipientKeys = new ArrayList<>();
+        recipientKeys.add(key1);
+        recipientKeys.add(key2);
+        String json = SpxpCryptoToolsV03.encryptSymmetricJson(MESSAGE, recipientKeys);
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricJson(json, keyProvider(key2)));
+        json = engine.encryptSymmetricJson(MESSAGE, recipientKeys);
+        Assert.assertEquals(MESSAGE, SpxpCryptoToolsV03.decryptSymmetricJson(json, keyProvider(key1)));
+    }
+
+    @Test
+    public void decryptSymmetricJsonStreamingMemberOrder() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(5).build();
+        SpxpCryptoEngine domEngine = SpxpCryptoEngine.builder().jsonStreaming(false).build();
+        SpxpSymmetricKeySpec key1 = new SpxpSymmetricKeySpec("test1", engine.generateSymmetricKey(256));
+        SpxpSymmetricKeySpec key2 = new SpxpSymmetricKeySpec("test2", engine.generateSymmetricKey(256));
+        List<SpxpSymmetricKeySpec> recipientKeys = new ArrayList<>();
+        recipientKeys.add(key1);
+        recipientKeys.add(key2);
+        JSONObject jwe = new JSONObject(engine.encryptSymmetricJson(MESSAGE, recipientKeys));
+        // ciphertext first, recipients last, with whitespace and unknown members in between
+        String reordered = "{ \"ciphertext\" : \"" + jwe.getString("ciphertext") + "\",\n" +
+                "\"unknown\": [1, {\"a\": \"]}\\\"\"}, true, null, -1.5e3],\n" +
+                "\"tag\":\"" + jwe.getString("tag") + "\", \"iv\":\"" + jwe.getString("iv") + "\",\n" +
+                "\"unprotected\":" + jwe.getJSONObject("unprotected") + ", \"protected\":\"" + jwe.getString("protected") + "\",\n" +
+                "\"recipients\":" + jwe.getJSONArray("recipients") + " }";
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricJson(reordered, keyProvider(key2)));
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricJson(new StringReader(reordered), keyProvider(key1)));
+        Assert.assertEquals(MESSAGE, domEngine.decryptSymmetricJson(reordered, keyProvider(key2)));
+        try {
+            engine.decryptSymmetricJson(reordered.replace("\"tag\"", "\"tag\":null, \"x\""), keyProvider(key2));
+            Assert.fail("missing tag must not decrypt");
+        } catch(SpxpCryptoException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void decryptSymmetricJsonCustomAAD() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(5).build();
+        SpxpCryptoEngine domEngine = SpxpCryptoEngine.builder().jsonStreaming(false).build();
+        SpxpSymmetricKeySpec key = new SpxpSymmetricKeySpec("test", engine.generateSymmetricKey(256));
+        JSONObject jwe = new JSONObject(engine.encryptSymmetricJson(MESSAGE, Arrays.asList(key)));
+        // unwrap the CEK and encrypt again with a custom AAD
+        JSONObject recipient = jwe.getJSONArray("recipients").getJSONObject(0);
+        JSONObject header = recipient.getJSONObject("header");
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key.getSymmetricKey(), "AES"), new GCMParameterSpec(128, SpxpCryptoToolsV04.decodeBase64Url(header.getString("iv"))));
+        c.update(SpxpCryptoToolsV04.decodeBase64Url(recipient.getString("encrypted_key")));
+        byte[] cek = c.doFinal(SpxpCryptoToolsV04.decodeBase64Url(header.getString("tag")));
+        String aad = SpxpCryptoToolsV04.encodeBase64Url("custom".getBytes(StandardCharsets.UTF_8));
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, SpxpCryptoToolsV04.decodeBase64Url(jwe.getString("iv"))));
+        // like the engine, the decoded custom AAD follows the protected header
+        c.updateAAD((jwe.getString("protected") + ".custom").getBytes(StandardCharsets.US_ASCII));
+        byte[] encrypted = c.doFinal(MESSAGE.getBytes(StandardCharsets.UTF_8));
+        String ciphertext = SpxpCryptoToolsV04.encodeBase64Url(Arrays.copyOf(encrypted, encrypted.length - 16));
+        String tag = SpxpCryptoToolsV04.encodeBase64Url(Arrays.copyOfRange(encrypted, encrypted.length - 16, encrypted.length));
+        String members = "\"protected\":\"" + jwe.getString("protected") + "\",\"unprotected\":" + jwe.getJSONObject("unprotected") +
+                ",\"recipients\":" + jwe.getJSONArray("recipients") + ",\"iv\":\"" + jwe.getString("iv") + "\"";
+        // the custom AAD may come before or after the ciphertext
+        String aadFirst = "{" + members + ",\"aad\":\"" + aad + "\",\"ciphertext\":\"" + ciphertext + "\",\"tag\":\"" + tag + "\"}";
+        String aadLast = "{" + members + ",\"ciphertext\":\"" + ciphertext + "\",\"tag\":\"" + tag + "\",\"aad\":\"" + aad + "\"}";
+        for(String json : new String[] {aadFirst, aadLast}) {
+            Assert.assertEquals(MESSAGE, engine.decryptSymmetricJson(json, keyProvider(key)));
+            Assert.assertEquals(MESSAGE, engine.decryptSymmetricJson(new StringReader(json), keyProvider(key)));
+            Assert.assertEquals(MESSAGE, domEngine.decryptSymmetricJson(json, keyProvider(key)));
+            try {
+                engine.decryptSymmetricJson(json.replace(aad, SpxpCryptoToolsV04.encodeBase64Url("other".getBytes(StandardCharsets.UTF_8))), keyProvider(key));
+                Assert.fail("wrong custom AAD must not decrypt");
+            } catch(SpxpCryptoException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void decryptSymmetricJsonStreamingRejectsMalformedJson() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(5).build();
+        SpxpSymmetricKeySpec key = new SpxpSymmetricKeySpec("test", engine.generateSymmetricKey(256));
+        String json = engine.encryptSymmetricJson(MESSAGE, Arrays.asList(key));
+        JSONObject jwe = new JSONObject(json);
+        String open = json.substring(0, json.lastIndexOf('}'));
+        List<String> malformed = new ArrayList<>();
+        // repeated members, also after the ciphertext has been bound to the cipher
+        for(String member : new String[] {"ciphertext", "iv", "protected", "tag"}) {
+            malformed.add(open + ",\"" + member + "\":\"" + jwe.getString(member) + "\"}");
+        }
+        malformed.add(open + ",\"recipients\":" + jwe.getJSONArray("recipients") + "}");
+        malformed.add(open + ",\"x\":1,\"x\":2}");
+        // trailing commas, also in skipped values
+        malformed.add(open + ",}");
+        malformed.add(open + ",\"x\":[1,2,]}");
+        malformed.add(open + ",\"x\":{\"a\":1,}}");
+        malformed.add(open + ",\"x\":{\"a\" 1}}");
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricJson(open + ",\"x\":[1,{\"a\":[]}]}", keyProvider(key)));
+        for(String m : malformed) {
+            try {
+                engine.decryptSymmetricJson(m, keyProvider(key));
+                Assert.fail("must be rejected: " + m);
+            } catch(SpxpCryptoException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void decryptSymmetricJsonResolvesKeysInOneCall() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().build();
+        SpxpCryptoEngine domEngine = SpxpCryptoEngine.builder().jsonStreaming(false).build();
+        List<SpxpSymmetricKeySpec> recipientKeys = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            recipientKeys.add(new SpxpSymmetricKeySpec("test" + i, engine.generateSymmetricKey(256)));
+        }
+        String json = engine.encryptSymmetricJson(MESSAGE, recipientKeys);
+        final SpxpKeyProvider singleKeys = keyProvider(recipientKeys.get(17));
+        final List<Set<String>> requests = new ArrayList<>();
+        SpxpKeyProvider batchProvider = new SpxpKeyProvider() {
+            @Override
+            public SecretKey getKey(String keyId) throws SpxpCryptoNoSuchKeyException {
+                throw new UnsupportedOperationException();
+            }
+            @Override
+            public Map<String, SecretKey> getKeys(Set<String> keyIds) {
+                requests.add(keyIds);
+                return singleKeys.getKeys(keyIds);
+            }
+        };
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricJson(json, batchProvider));
+        Assert.assertEquals(MESSAGE, domEngine.decryptSymmetricJson(json, batchProvider));
+        Assert.assertEquals(2, requests.size());
+        List<String> kids = new ArrayList<>();
+        for(SpxpSymmetricKeySpec recipientKey : recipientKeys) {
+            kids.add(recipientKey.getKeyId());
+        }
+        // in document order
+        Assert.assertEquals(kids, new ArrayList<>(requests.get(0)));
+        Assert.assertEquals(kids, new ArrayList<>(requests.get(1)));
+        // providers without getKeys() are asked for every recipient, and any exception
+        // only skips that recipient
+        final List<String> lookups = new ArrayList<>();
+        SpxpKeyProvider singleProvider = new SpxpKeyProvider() {
+            @Override
+            public SecretKey getKey(String keyId) throws SpxpCryptoNoSuchKeyException {
+                lookups.add(keyId);
+                if(keyId.equals("test0")) {
+                    throw new IllegalStateException("key store unavailable");
+                }
+                return singleKeys.getKey(keyId);
+            }
+        };
+        for(SpxpCryptoEngine e : new SpxpCryptoEngine[] {engine, domEngine}) {
+            lookups.clear();
+            Assert.assertEquals(MESSAGE, e.decryptSymmetricJson(json, singleProvider));
+            Assert.assertEquals(kids, lookups);
+        }
+        // a failing getKeys() is no key at all
+        SpxpKeyProvider failingProvider = new SpxpKeyProvider() {
+            @Override
+            public SecretKey getKey(String keyId) throws SpxpCryptoNoSuchKeyException {
+                throw new UnsupportedOperationException();
+            }
+            @Override
+            public Map<String, SecretKey> getKeys(Set<String> keyIds) {
+                throw new IllegalStateException("key store unavailable");
+            }
+        };
+        for(SpxpCryptoEngine e : new SpxpCryptoEngine[] {engine, domEngine}) {
+            try {
+                e.decryptSymmetricJson(json, failingProvider);
+                Assert.fail("no key must be available");
+            } catch(SpxpCryptoNoSuchKeyException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void encryptSymmetricJsonParallelKeepsRecipientOrder() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            SpxpCryptoEngine engine = SpxpCryptoEngine.builder().executor(executor).parallelRecipientThreshold(10).build();
+            List<SpxpSymmetricKeySpec> recipientKeys = new ArrayList<>();
+            for(int i = 0; i < 101; i++) {
+                recipientKeys.add(new SpxpSymmetricKeySpec("test" + i, engine.generateSymmetricKey(256)));
+            }
+            String json = engine.encryptSymmetricJson(MESSAGE, recipientKeys);
+            JSONArray recipients = new JSONObject(json).getJSONArray("recipients");
+            Assert.assertEquals(recipientKeys.size(), recipients.length());
+            for(int i = 0; i < recipients.length(); i++) {
+                Assert.assertEquals("test" + i, recipients.getJSONObject(i).getJSONObject("header").getString("kid"));
+            }
+            Assert.assertEquals(MESSAGE, SpxpCryptoToolsV03.decryptSymmetricJson(json, keyProvider(recipientKeys.get(100))));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = SpxpCryptoNoSuchKeyException.class)
+    public void decryptSymmetricJsonWithoutKey() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().build();
+        SpxpSymmetricKeySpec key1 = new SpxpSymmetricKeySpec("test1", engine.generateSymmetricKey(256));
+        SpxpSymmetricKeySpec key2 = new SpxpSymmetricKeySpec("test2", engine.generateSymmetricKey(256));
+        List<SpxpSymmetricKeySpec> recipientKeys = new ArrayList<>();
+        recipientKeys.add(key1);
+        String json = engine.encryptSymmetricJson(MESSAGE, recipientKeys);
+        engine.decryptSymmetricJson(json, keyProvider(key2));
+    }
+
+    @Test
+    public void encryptResourceRoundtrip() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(100).build();
+        byte[] data = new byte[12345];
+        new Random(42).nextBytes(data);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        String descriptor = engine.encryptResource(new ByteArrayInputStream(data), encrypted, "https://example.com/photo");
+        Assert.assertEquals("https://example.com/photo", new JSONObject(descriptor).getString("uri"));
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        SpxpCryptoToolsV03.decryptResource(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, descriptor);
+        Assert.assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    @Test
+    public void encryptChunkedResourceRoundtrip() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            SpxpCryptoEngine engine = SpxpCryptoEngine.builder().resourceChunkSize(100).build();
+            SpxpCryptoEngine parallelEngine = SpxpCryptoEngine.builder().resourceChunkSize(100).executor(executor).build();
+            for(int size : new int[] {0, 1, 99, 100, 101, 1000, 12345}) {
+                byte[] data = new byte[size];
+                new Random(size).nextBytes(data);
+                ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+                String descriptor = engine.encryptResource(new ByteArrayInputStream(data), encrypted, null);
+                Assert.assertEquals(100, new JSONObject(descriptor).getInt("chunk"));
+                Assert.assertEquals(size + (size / 100 + (size % 100 == 0 && size > 0 ? 0 : 1)) * 16, encrypted.size());
+                ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+                parallelEngine.decryptResource(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, descriptor);
+                Assert.assertArrayEquals(data, decrypted.toByteArray());
+                encrypted = new ByteArrayOutputStream();
+                descriptor = parallelEngine.encryptResource(new ByteArrayInputStream(data), encrypted, null);
+                decrypted = new ByteArrayOutputStream();
+                engine.decryptResource(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, descriptor);
+                Assert.assertArrayEquals(data, decrypted.toByteArray());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void decryptTruncatedChunkedResource() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().resourceChunkSize(100).build();
+        byte[] data = new byte[1000];
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        String descriptor = engine.encryptResource(new ByteArrayInputStream(data), encrypted, null);
+        // drop the last chunk, which leaves a valid looking resource of 9 full chunks
+        byte[] truncated = Arrays.copyOf(encrypted.toByteArray(), 9 * 116);
+        try {
+            engine.decryptResource(new ByteArrayInputStream(truncated), new ByteArrayOutputStream(), descriptor);
+            Assert.fail("truncated resource must not decrypt");
+        } catch(SpxpCryptoException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void decryptChunkedResourceRange() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().resourceChunkSize(100).build();
+        byte[] data = new byte[1234];
+        new Random(42).nextBytes(data);
+        File file = File.createTempFile("spxp-test-", ".bin");
+        try {
+            String descriptor = engine.encryptResource(new ByteArrayInputStream(data), new FileOutputStream(file), null);
+            Assert.assertEquals(data.length, engine.getDecryptedResourceSize(file.length(), descriptor));
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long[][] ranges = new long[][] {{0, 0}, {0, 1234}, {0, 100}, {99, 2}, {100, 100}, {1199, 35}, {1233, 1}, {1234, 0}, {350, 600}};
+                for(long[] range : ranges) {
+                    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+                    engine.decryptResource(channel, decrypted, descriptor, range[0], range[1]);
+                    Assert.assertArrayEquals(Arrays.copyOfRange(data, (int) range[0], (int) (range[0] + range[1])), decrypted.toByteArray());
+                }
+                try {
+                    engine.decryptResource(channel, new ByteArrayOutputStream(), descriptor, 1200, 35);
+                    Assert.fail("range beyond the end must be rejected");
+                } catch(SpxpCryptoException e) {
+                    // expected
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void encryptResourceFiles() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(1000).build();
+        SpxpCryptoEngine chunkedEngine = SpxpCryptoEngine.builder().resourceChunkSize(1000).build();
+        // streams everything above 100 bytes
+        SpxpCryptoEngine streamingEngine = SpxpCryptoEngine.builder().bufferSize(1000).directResourceDecryptionLimit(100).build();
+        SpxpCryptoEngine providerStreamingEngine = SpxpCryptoEngine.builder().bufferSize(1000).directResourceDecryptionLimit(100).cipherProvider(Security.getProvider("SunJCE")).build();
+        Path plain = Files.createTempFile("spxp-test-", ".bin");
+        Path encrypted = Files.createTempFile("spxp-test-", ".bin");
+        Path decrypted = Files.createTempFile("spxp-test-", ".bin");
+        try {
+            // the last size reuses the larger direct buffer of the one before
+            for(int size : new int[] {0, 15, 16, 17, 12345, 100}) {
+                byte[] data = new byte[size];
+                new Random(size).nextBytes(data);
+                Files.write(plain, data);
+                String descriptor = engine.encryptResource(plain, encrypted, null);
+                Assert.assertEquals(size, Files.size(encrypted));
+                ByteArrayOutputStream v03 = new ByteArrayOutputStream();
+                SpxpCryptoToolsV03.decryptResource(Files.newInputStream(encrypted), v03, descriptor);
+                Assert.assertArrayEquals(data, v03.toByteArray());
+                engine.decryptResource(encrypted, decrypted, descriptor);
+                Assert.assertArrayEquals(data, Files.readAllBytes(decrypted));
+                streamingEngine.decryptResource(encrypted, decrypted, descriptor);
+                Assert.assertArrayEquals(data, Files.readAllBytes(decrypted));
+                providerStreamingEngine.decryptResource(encrypted, decrypted, descriptor);
+                Assert.assertArrayEquals(data, Files.readAllBytes(decrypted));
+                descriptor = chunkedEngine.encryptResource(plain, encrypted, null);
+                engine.decryptResource(encrypted, decrypted, descriptor);
+                Assert.assertArrayEquals(data, Files.readAllBytes(decrypted));
+            }
+            // a wrong tag leaves no plain text behind
+            String descriptor = engine.encryptResource(plain, encrypted, null);
+            JSONObject obj = new JSONObject(descriptor);
+            obj.put("tag", new JSONObject(engine.encryptResource(plain, decrypted, null)).getString("tag"));
+            for(SpxpCryptoEngine e : new SpxpCryptoEngine[] {engine, streamingEngine, providerStreamingEngine}) {
+                Files.write(decrypted, new byte[0]);
+                try {
+                    e.decryptResource(encrypted, decrypted, obj.toString());
+                    Assert.fail("wrong tag must not decrypt");
+                } catch(SpxpCryptoException ex) {
+                    // expected
+                }
+                Assert.assertEquals(0, Files.size(decrypted));
+            }
+        } finally {
+            Files.delete(plain);
+            Files.delete(encrypted);
+            Files.delete(decrypted);
+        }
+    }
+
+    @Test
+    public void encryptResourceAsync() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(1000).build();
+        SpxpCryptoEngine chunkedEngine = SpxpCryptoEngine.builder().bufferSize(1000).resourceChunkSize(300).build();
+        Path plain = Files.createTempFile("spxp-test-", ".bin");
+        Path encrypted = Files.createTempFile("spxp-test-", ".bin");
+        Path decrypted = Files.createTempFile("spxp-test-", ".bin");
+        try {
+            for(SpxpCryptoEngine encryptingEngine : new SpxpCryptoEngine[] {engine, chunkedEngine}) {
+                for(int size : new int[] {0, 1, 300, 12345}) {
+                    byte[] data = new byte[size];
+                    new Random(size).nextBytes(data);
+                    Files.write(plain, data);
+                    String descriptor = encryptingEngine.encryptResourceAsync(plain, encrypted, null).get();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    engine.decryptResource(Files.newInputStream(encrypted), out, descriptor);
+                    Assert.assertArrayEquals(data, out.toByteArray());
+                    engine.decryptResourceAsync(encrypted, decrypted, descriptor).get();
+                    Assert.assertArrayEquals(data, Files.readAllBytes(decrypted));
+                    // a modified last byte fails and leaves no plain text behind
+                    byte[] tampered = Files.readAllBytes(encrypted);
+                    if(tampered.length > 0) {
+                        tampered[tampered.length - 1] ^= 1;
+                        Files.write(encrypted, tampered);
+                        try {
+                            engine.decryptResourceAsync(encrypted, decrypted, descriptor).get();
+                            Assert.fail("tampered resource must not decrypt");
+                        } catch(ExecutionException e) {
+                            Assert.assertTrue(e.getCause() instanceof SpxpCryptoException);
+                        }
+                        Assert.assertEquals(0, Files.size(decrypted));
+                    }
+                }
+            }
+        } finally {
+            Files.delete(plain);
+            Files.delete(encrypted);
+            Files.delete(decrypted);
+        }
+    }
+
+    @Test
+    public void openDecryptingStream() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(100).build();
+        SpxpCryptoEngine chunkedEngine = SpxpCryptoEngine.builder().resourceChunkSize(100).build();
+        for(SpxpCryptoEngine encryptingEngine : new SpxpCryptoEngine[] {engine, chunkedEngine}) {
+            for(int size : new int[] {0, 1, 100, 12345}) {
+                byte[] data = new byte[size];
+                new Random(size).nextBytes(data);
+                ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+                String descriptor = encryptingEngine.encryptResource(new ByteArrayInputStream(data), encrypted, null);
+                ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+                try(InputStream in = engine.openDecryptingStream(new ByteArrayInputStream(encrypted.toByteArray()), descriptor)) {
+                    // mix single byte and array reads
+                    int b;
+                    byte[] buffer = new byte[77];
+                    while((b = in.read()) >= 0) {
+                        decrypted.write(b);
+                        int n = in.read(buffer);
+                        if(n > 0) {
+                            decrypted.write(buffer, 0, n);
+                        }
+                    }
+                }
+                Assert.assertArrayEquals(data, decrypted.toByteArray());
+                // a modified last byte only fails at the end of the stream
+                byte[] tampered = encrypted.toByteArray();
+                if(tampered.length > 0) {
+                    tampered[tampered.length - 1] ^= 1;
+                    try(InputStream in = engine.openDecryptingStream(new ByteArrayInputStream(tampered), descriptor)) {
+                        byte[] buffer = new byte[1000];
+                        while(in.read(buffer) >= 0) {
+                            // drain
+                        }
+                        Assert.fail("tampered resource must not decrypt");
+                    } catch(IOException e) {
+                        // expected
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void openEncryptingStream() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().bufferSize(100).build();
+        SpxpCryptoEngine chunkedEngine = SpxpCryptoEngine.builder().resourceChunkSize(100).build();
+        for(SpxpCryptoEngine encryptingEngine : new SpxpCryptoEngine[] {engine, chunkedEngine}) {
+            for(int size : new int[] {0, 1, 100, 12345}) {
+                byte[] data = new byte[size];
+                new Random(size).nextBytes(data);
+                ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+                try(SpxpEncryptingInputStream in = encryptingEngine.openEncryptingStream(new ByteArrayInputStream(data), "https://example.com/photo")) {
+                    byte[] buffer = new byte[77];
+                    int n;
+                    while((n = in.read(buffer)) >= 0) {
+                        encrypted.write(buffer, 0, n);
+                        try {
+                            in.getDescriptor();
+                            Assert.fail("descriptor must not be available before the end of the stream");
+                        } catch(IllegalStateException e) {
+                            // expected
+                        }
+                    }
+                    String descriptor = in.getDescriptor();
+                    Assert.assertEquals("https://example.com/photo", new JSONObject(descriptor).getString("uri"));
+                    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+                    engine.decryptResource(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, descriptor);
+                    Assert.assertArrayEquals(data, decrypted.toByteArray());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void canonicalizeAndSign() throws Exception {
+        JSONObject obj = new JSONObject();
+        obj.put("b", new JSONArray("[1,\"x\",{\"z\":null,\"a\":true}]"));
+        obj.put("a", "q\"\\\t\u0001\u00e4\u20ac\ud83d\ude00");
+        obj.put("\u00e4", 1.5);
+        obj.put("Z", 2);
+        obj.put("signature", "omitted");
+        String expected = "{\"Z\":2,\"a\":\"q\\\"\\\\\\t\\u0001\u00e4\u20ac\ud83d\ude00\",\"b\":[1,\"x\",{\"a\":true,\"z\":null}],\"\u00e4\":1.5}";
+        Assert.assertEquals(expected, SpxpCryptoToolsV04.canonicalize(obj, SpxpCryptoToolsV04.OMIT_MEMBERS_VERIFY));
+        CanonicalJsonWriter writer = new CanonicalJsonWriter();
+        writer.writeObject(obj, SpxpCryptoToolsV04.OMIT_MEMBERS_VERIFY);
+        writer.writeRaw("\u00e4ad");
+        Assert.assertArrayEquals((expected + "\u00e4ad").getBytes(StandardCharsets.UTF_8), Arrays.copyOf(writer.getBuffer(), writer.getLength()));
+        // sign and verify through the engine's reused writer
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().build();
+        SpxpProfileKeyPair keyPair = engine.generateProfileKeyPair();
+        obj.remove("signature");
+        engine.signObject(obj, keyPair, "\u00e4ad");
+        Assert.assertTrue(engine.verifySignature(obj, keyPair.extractProfilePublicKey(), "\u00e4ad", null));
+        obj.put("Z", 3);
+        Assert.assertFalse(engine.verifySignature(obj, keyPair.extractProfilePublicKey(), "\u00e4ad", null));
+    }
+
+    @Test
+    public void canonicalizeToStream() throws Exception {
+        JSONObject obj = new JSONObject();
+        JSONArray posts = new JSONArray();
+        Random random = new Random(42);
+        for(int i = 0; i < 500; i++) {
+            JSONObject post = new JSONObject();
+            char[] message = new char[random.nextInt(100)];
+            for(int j = 0; j < message.length; j++) {
+                message[j] = (char) (random.nextInt(4) == 0 ? random.nextInt(0xd800) : random.nextInt(0x80));
+            }
+            post.put("message", new String(message));
+            post.put("seqts", "2021-01-01T00:00:00.000");
+            post.put("i", i);
+            posts.put(post);
+        }
+        obj.put("data", posts);
+        byte[] expected = SpxpCryptoToolsV04.canonicalize(obj, SpxpCryptoToolsV04.OMIT_MEMBERS_VERIFY).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SpxpCryptoToolsV04.canonicalize(obj, SpxpCryptoToolsV04.OMIT_MEMBERS_VERIFY, out);
+        Assert.assertArrayEquals(expected, out.toByteArray());
+        // a tiny buffer is flushed in between and only grows with the longest string
+        out = new ByteArrayOutputStream();
+        CanonicalJsonWriter writer = new CanonicalJsonWriter(out, 16);
+        writer.writeObject(obj, SpxpCryptoToolsV04.OMIT_MEMBERS_VERIFY);
+        writer.flush();
+        Assert.assertArrayEquals(expected, out.toByteArray());
+        Assert.assertTrue(writer.getBuffer().length < 1024);
+    }
+
+    @Test
+    public void certificateCache() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().certificateCacheSize(SpxpCryptoEngine.DEFAULT_CERTIFICATE_CACHE_SIZE).build();
+        SpxpProfileKeyPair profileKeyPair = engine.generateProfileKeyPair();
+        SpxpProfilePublicKey profilePublicKey = profileKeyPair.extractProfilePublicKey();
+        SpxpProfileKeyPair delegatedKeyPair = engine.generateProfileKeyPair();
+        JSONObject certificate = new JSONObject();
+        certificate.put("publicKey", SpxpCryptoToolsV04.getPublicJWK(delegatedKeyPair.extractProfilePublicKey()));
+        certificate.put("grant", new JSONArray(Arrays.asList("post")));
+        engine.signObject(certificate, profileKeyPair);
+        List<String> permissions = Arrays.asList("post");
+        for(int i = 0; i < 3; i++) {
+            JSONObject post = new JSONObject();
+            post.put("message", MESSAGE + i);
+            engine.signObject(post, delegatedKeyPair);
+            post.getJSONObject("signature").put("key", new JSONObject(certificate.toString()));
+            Assert.assertTrue(engine.verifySignature(post, profilePublicKey, null, permissions));
+        }
+        SpxpCertificateCache cache = engine.getCertificateCache();
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(2, cache.getHitCount());
+        // a modified certificate or another root key does not match the cached entry
+        JSONObject post = new JSONObject();
+        post.put("message", MESSAGE);
+        engine.signObject(post, delegatedKeyPair);
+        JSONObject modified = new JSONObject(certificate.toString());
+        modified.put("grant", new JSONArray(Arrays.asList("post", "comment")));
+        post.getJSONObject("signature").put("key", modified);
+        Assert.assertFalse(engine.verifySignature(post, profilePublicKey, null, permissions));
+        post.getJSONObject("signature").put("key", certificate);
+        Assert.assertFalse(engine.verifySignature(post, engine.generateProfileKeyPair().extractProfilePublicKey(), null, permissions));
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertTrue(engine.verifySignature(post, profilePublicKey, null, permissions));
+        Assert.assertEquals(3, cache.getHitCount());
+        // disabled by default
+        Assert.assertNull(SpxpCryptoEngine.builder().build().getCertificateCache());
+        Assert.assertNull(SpxpCryptoEngine.builder().certificateCacheSize(0).build().getCertificateCache());
+    }
+
+    @Test
+    public void signObjects() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for(SpxpCryptoEngine engine : new SpxpCryptoEngine[] {SpxpCryptoEngine.builder().build(), SpxpCryptoEngine.builder().executor(executor).build()}) {
+                SpxpProfileKeyPair keyPair = engine.generateProfileKeyPair();
+                List<JSONObject> posts = new ArrayList<>();
+                for(int i = 0; i < 20; i++) {
+                    JSONObject post = new JSONObject();
+                    post.put("message", MESSAGE + i);
+                    posts.add(post);
+                }
+                engine.signObjects(posts, keyPair, "aad");
+                for(JSONObject post : posts) {
+                    JSONObject expected = new JSONObject(post.toString());
+                    expected.remove("signature");
+                    engine.signObject(expected, keyPair, "aad");
+                    Assert.assertEquals(expected.getJSONObject("signature").getString("sig"), post.getJSONObject("signature").getString("sig"));
+                    Assert.assertTrue(engine.verifySignature(post, keyPair.extractProfilePublicKey(), "aad", null));
+                }
+                JSONObject unsigned = new JSONObject();
+                try {
+                    engine.signObjects(Arrays.asList(unsigned, posts.get(0)), keyPair);
+                    Assert.fail("signed object must not be signed again");
+                } catch(SpxpCryptoException e) {
+                    // expected
+                }
+                Assert.assertFalse(unsigned.has("signature"));
+                try {
+                    engine.signObjects(Arrays.asList(unsigned, unsigned), keyPair);
+                    Assert.fail("object contained twice must not be signed");
+                } catch(SpxpCryptoException e) {
+                    // expected
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void verifySignatures() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for(SpxpCryptoEngine engine : new SpxpCryptoEngine[] {SpxpCryptoEngine.builder().build(), SpxpCryptoEngine.builder().executor(executor).build()}) {
+                SpxpProfileKeyPair keyPair = engine.generateProfileKeyPair();
+                List<JSONObject> posts = new ArrayList<>();
+                for(int i = 0; i < 20; i++) {
+                    JSONObject post = new JSONObject();
+                    post.put("message", MESSAGE + i);
+                    engine.signObject(post, keyPair);
+                    posts.add(post);
+                }
+                posts.get(3).put("message", "tampered");
+                posts.get(17).remove("signature");
+                boolean[] result = engine.verifySignatures(posts, keyPair.extractProfilePublicKey(), null, null);
+                for(int i = 0; i < posts.size(); i++) {
+                    Assert.assertEquals(i != 3 && i != 17, result[i]);
+                }
+                // posts signed with a certificate, two of them with a malformed public key
+                SpxpProfileKeyPair delegatedKeyPair = engine.generateProfileKeyPair();
+                JSONObject certificate = new JSONObject();
+                certificate.put("publicKey", SpxpCryptoToolsV04.getPublicJWK(delegatedKeyPair.extractProfilePublicKey()));
+                certificate.put("grant", new JSONArray(Arrays.asList("post")));
+                engine.signObject(certificate, keyPair);
+                for(int i : new int[] {5, 8, 11}) {
+                    JSONObject post = new JSONObject();
+                    post.put("message", MESSAGE + i);
+                    engine.signObject(post, delegatedKeyPair);
+                    post.getJSONObject("signature").put("key", new JSONObject(certificate.toString()));
+                    posts.set(i, post);
+                }
+                posts.get(8).getJSONObject("signature").getJSONObject("key").getJSONObject("publicKey").put("kty", "RSA");
+                posts.get(11).getJSONObject("signature").getJSONObject("key").getJSONObject("publicKey").put("x", "AAAA");
+                result = engine.verifySignatures(posts, keyPair.extractProfilePublicKey(), null, Arrays.asList("post"));
+                for(int i = 0; i < posts.size(); i++) {
+                    Assert.assertEquals(i != 3 && i != 8 && i != 11 && i != 17, result[i]);
+                }
+                // a single object with a malformed certificate still throws
+                try {
+                    engine.verifySignature(posts.get(8), keyPair.extractProfilePublicKey(), null, Arrays.asList("post"));
+                    Assert.fail("malformed certificate must throw");
+                } catch(SpxpCryptoException e) {
+                    // expected
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void encryptAsymmetricJsonRoundtrip() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().build();
+        SpxpConnectKeyPair keyPair = engine.generateConnectKeyPair();
+        String json = engine.encryptAsymmetricJson(MESSAGE, keyPair.extractConnectPublicKey());
+        Assert.assertEquals(MESSAGE, SpxpCryptoToolsV03.decryptAsymmetricJson(json, keyPair));
+        Assert.assertEquals(MESSAGE, engine.decryptAsymmetricJson(json, keyPair));
+    }
+
+    @Test
+    public void encryptAsymmetricJsonToRecipient() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for(SpxpCryptoEngine engine : new SpxpCryptoEngine[] {SpxpCryptoEngine.builder().build(), SpxpCryptoEngine.builder().ephemeralKeyPoolSize(4).build(), SpxpCryptoEngine.builder().ephemeralKeyPoolSize(4).executor(executor).build()}) {
+                SpxpConnectKeyPair keyPair = engine.generateConnectKeyPair();
+                SpxpConnectRecipient recipient = engine.createConnectRecipient(keyPair.extractConnectPublicKey());
+                Assert.assertEquals(keyPair.extractConnectPublicKey(), recipient.getPublicKey());
+                Set<String> ephemeralKeys = new HashSet<>();
+                for(int i = 0; i < 20; i++) {
+                    String json = engine.encryptAsymmetricJson(MESSAGE, recipient);
+                    Assert.assertEquals(MESSAGE, SpxpCryptoToolsV03.decryptAsymmetricJson(json, keyPair));
+                    Assert.assertEquals(MESSAGE, engine.decryptAsymmetricJson(json, keyPair));
+                    JSONObject epk = new JSONObject(json).getJSONArray("recipients").getJSONObject(0).getJSONObject("header").getJSONObject("epk");
+                    Assert.assertTrue(epk.has("kid"));
+                    Assert.assertTrue(ephemeralKeys.add(epk.getString("x")));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        try {
+            SpxpCryptoEngine.builder().build().createConnectRecipient(new SpxpConnectPublicKey("zero", new byte[32]));
+            Assert.fail("point of small order must be rejected");
+        } catch(SpxpCryptoException e) {
+            // expected
+        }
+        // the constructor checks the size, a subclass can still hand out another one
+        for(final int size : new int[] {0, 31, 33}) {
+            try {
+                SpxpCryptoEngine.builder().build().createConnectRecipient(new SpxpConnectPublicKey("size", new byte[32]) {
+                    @Override
+                    public byte[] getPublicKey() {
+                        return new byte[size];
+                    }
+                });
+                Assert.fail("key of " + size + " bytes must be rejected");
+            } catch(SpxpCryptoException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void derivedKeyCache() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().derivedKeyCacheSize(2).derivedKeyCacheTtl(200, TimeUnit.MILLISECONDS).build();
+        SpxpDerivedKeyCache cache = engine.getDerivedKeyCache();
+        SpxpConnectKeyPair keyPair = engine.generateConnectKeyPair();
+        String json = engine.encryptAsymmetricJson(MESSAGE, keyPair.extractConnectPublicKey());
+        Assert.assertEquals(MESSAGE, engine.decryptAsymmetricJson(json, keyPair));
+        Assert.assertEquals(MESSAGE, engine.decryptAsymmetricJson(json, keyPair));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.size());
+        // a key pair rotated under the same key id must not hit
+        SpxpConnectKeyPair rotated = engine.generateConnectKeyPair();
+        rotated = new SpxpConnectKeyPair(keyPair.getKeyId(), rotated.getSecretKey(), rotated.getPublicKey());
+        try {
+            engine.decryptAsymmetricJson(json, rotated);
+            Assert.fail("message must not decrypt with a rotated key");
+        } catch(SpxpCryptoException e) {
+            // expected
+        }
+        Assert.assertEquals(1, cache.size());
+        // failed decryptions are not cached
+        JSONObject tampered = new JSONObject(engine.encryptAsymmetricJson(MESSAGE, keyPair.extractConnectPublicKey()));
+        tampered.put("tag", SpxpCryptoToolsV04.encodeBase64Url(new byte[16]));
+        try {
+            engine.decryptAsymmetricJson(tampered.toString(), keyPair);
+            Assert.fail("tampered message must not decrypt");
+        } catch(SpxpCryptoException e) {
+            // expected
+        }
+        Assert.assertEquals(1, cache.size());
+        Thread.sleep(300);
+        cache.purgeExpired();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(1, cache.getExpirationCount());
+        Assert.assertEquals(MESSAGE, engine.decryptAsymmetricJson(json, keyPair));
+        Assert.assertEquals(1, cache.getHitCount());
+        for(int i = 0; i < 3; i++) {
+            Assert.assertEquals(MESSAGE, engine.decryptAsymmetricJson(engine.encryptAsymmetricJson(MESSAGE, keyPair.extractConnectPublicKey()), keyPair));
+        }
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(2, cache.getEvictionCount());
+    }
+
+    @Test
+    public void lruCacheExpiry() throws Exception {
+        final List<String> removed = new ArrayList<>();
+        LruCache<String, String> cache = new LruCache<>(10, TimeUnit.MILLISECONDS.toNanos(200), new LruCache.RemovalListener<String>() {
+            @Override
+            public void removed(String value) {
+                removed.add(value);
+            }
+        });
+        cache.put("a", "a");
+        cache.put("b", "b");
+        Thread.sleep(120);
+        cache.put("c", "c");
+        Assert.assertEquals("a", cache.get("a"));
+        Thread.sleep(120);
+        // a and b have expired, put() only trims b from the least recently used end
+        cache.put("d", "d");
+        Assert.assertEquals(Arrays.asList("b"), removed);
+        Assert.assertEquals(3, cache.size());
+        cache.purgeExpired();
+        Assert.assertEquals(Arrays.asList("b", "a"), removed);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(2, cache.getExpirationCount());
+        Assert.assertEquals("c", cache.get("c"));
+    }
+
+    @Test
+    public void concatKdf() throws Exception {
+        byte[] z = new byte[32];
+        new Random(7).nextBytes(z);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for(int keyBitLen : new int[] {128, 256, 384, 512}) {
+            byte[] otherInfo = ConcatKdf.otherInfo("A256GCM", new byte[0], new byte[0], keyBitLen);
+            byte[] expected = new byte[0];
+            for(int counter = 1; expected.length < keyBitLen / 8; counter++) {
+                md.update(ByteBuffer.allocate(4).putInt(counter).array());
+                md.update(z);
+                byte[] round = md.digest(otherInfo);
+                byte[] concat = Arrays.copyOf(expected, expected.length + round.length);
+                System.arraycopy(round, 0, concat, expected.length, round.length);
+                expected = concat;
+            }
+            expected = Arrays.copyOf(expected, keyBitLen / 8);
+            Assert.assertArrayEquals(expected, ConcatKdf.deriveKey(z, "A256GCM", new byte[0], new byte[0], keyBitLen));
+            byte[] out = new byte[keyBitLen / 8 + 3];
+            ConcatKdf.deriveKey(z, otherInfo, out, 3, keyBitLen / 8);
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(out, 3, out.length));
+        }
+        Assert.assertArrayEquals(ConcatKdf.otherInfo("A256GCM", new byte[0], new byte[0], 256), ConcatKdf.A256GCM_OTHER_INFO);
+    }
+
+    @Test
+    public void generateKeysInBatches() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for(SpxpCryptoEngine engine : new SpxpCryptoEngine[] {SpxpCryptoEngine.builder().build(), SpxpCryptoEngine.builder().executor(executor).build(), SpxpCryptoEngine.builder().keyPairPoolSize(4).keyPairPoolLowWatermark(1).build()}) {
+                Set<String> keyIds = new HashSet<>();
+                for(SpxpProfileKeyPair keyPair : engine.generateProfileKeyPairs(10)) {
+                    Assert.assertTrue(keyIds.add(keyPair.getKeyId()));
+                    JSONObject obj = new JSONObject().put("message", MESSAGE);
+                    engine.signObject(obj, keyPair);
+                    Assert.assertTrue(engine.verifySignature(obj, keyPair.extractProfilePublicKey(), null, null));
+                }
+                for(SpxpConnectKeyPair keyPair : engine.generateConnectKeyPairs(10)) {
+                    Assert.assertTrue(keyIds.add(keyPair.getKeyId()));
+                    Assert.assertEquals(MESSAGE, engine.decryptAsymmetricJson(engine.encryptAsymmetricJson(MESSAGE, keyPair.extractConnectPublicKey()), keyPair));
+                }
+                List<SpxpSymmetricKeySpec> keySpecs = engine.generateSymmetricKeySpecs(10, SpxpCryptoToolsV04.KeyIdSize.SHORT);
+                Assert.assertEquals(10, keySpecs.size());
+                for(SpxpSymmetricKeySpec keySpec : keySpecs) {
+                    Assert.assertTrue(keyIds.add(keySpec.getKeyId()));
+                    Assert.assertEquals(SpxpCryptoToolsV04.KeyIdSize.SHORT.getSizeInBytes(), SpxpCryptoToolsV04.decodeBase64Url(keySpec.getKeyId()).length);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        try {
+            SpxpCryptoEngine.builder().keyPairPoolSize(4).keyPairPoolLowWatermark(4).build();
+            Assert.fail("low watermark must be below the pool size");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().build();
+        Assert.assertTrue(engine.generateProfileKeyPairs(0).isEmpty());
+        for(int kind = 0; kind < 3; kind++) {
+            try {
+                if(kind == 0) {
+                    engine.generateProfileKeyPairs(-1);
+                } else if(kind == 1) {
+                    engine.generateConnectKeyPairs(-1);
+                } else {
+                    engine.generateSymmetricKeySpecs(-1, SpxpCryptoToolsV04.KeyIdSize.SHORT);
+                }
+                Assert.fail("negative batch size must be rejected");
+            } catch(IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void randomSources() throws Exception {
+        SpxpCryptoEngine first = SpxpCryptoEngine.builder().randomSource(new SpxpDeterministicRandom(42)).build();
+        SpxpCryptoEngine second = SpxpCryptoEngine.builder().randomSource(new SpxpDeterministicRandom(42)).build();
+        SpxpCryptoEngine other = SpxpCryptoEngine.builder().randomSource(new SpxpDeterministicRandom(43)).build();
+        SpxpProfileKeyPair keyPair = first.generateProfileKeyPair();
+        Assert.assertEquals(keyPair, second.generateProfileKeyPair());
+        Assert.assertNotEquals(keyPair, other.generateProfileKeyPair());
+        SpxpSymmetricKeySpec key = new SpxpSymmetricKeySpec("key", other.generateSymmetricKey(256));
+        Assert.assertEquals(first.encryptSymmetricCompact(MESSAGE, key), second.encryptSymmetricCompact(MESSAGE, key));
+        // reseeded on every use
+        final SpxpThreadLocalDrbg drbg = new SpxpThreadLocalDrbg(new SecureRandom(), 1, TimeUnit.NANOSECONDS);
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().randomSource(drbg).build();
+        Assert.assertEquals(MESSAGE, engine.decryptSymmetricCompact(engine.encryptSymmetricCompact(MESSAGE, key), keyProvider(key)));
+        final SecureRandom[] otherThread = new SecureRandom[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                otherThread[0] = drbg.current();
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertSame(drbg.current(), drbg.current());
+        Assert.assertNotSame(drbg.current(), otherThread[0]);
+        byte[] a = new byte[32];
+        byte[] b = new byte[32];
+        drbg.current().nextBytes(a);
+        otherThread[0].nextBytes(b);
+        Assert.assertFalse(Arrays.equals(a, b));
+        // the BouncyCastle DRBG of Java 8 draws fresh entropy when it is reseeded, on top of
+        // the additional input
+        final AtomicLong entropyBytes = new AtomicLong();
+        SecureRandom entropySource = new SecureRandom() {
+            @Override
+            public void nextBytes(byte[] bytes) {
+                entropyBytes.addAndGet(bytes.length);
+                super.nextBytes(bytes);
+            }
+            @Override
+            public byte[] generateSeed(int numBytes) {
+                entropyBytes.addAndGet(numBytes);
+                return super.generateSeed(numBytes);
+            }
+        };
+        SpxpThreadLocalDrbg fallback = new SpxpThreadLocalDrbg(entropySource, 1, TimeUnit.NANOSECONDS, false);
+        Assert.assertTrue(fallback.current() instanceof SP800SecureRandom);
+        fallback.current().nextBytes(a);
+        long drawn = entropyBytes.get();
+        fallback.current().nextBytes(b);
+        Assert.assertTrue(entropyBytes.get() - drawn > 32);
+        Assert.assertFalse(Arrays.equals(a, b));
+        Assert.assertEquals(MESSAGE, SpxpCryptoEngine.builder().randomSource(fallback).build().decryptSymmetricCompact(
+                engine.encryptSymmetricCompact(MESSAGE, key), keyProvider(key)));
+    }
+
+    @Test
+    public void signAndVerify() throws Exception {
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().build();
+        SpxpProfileKeyPair keyPair = engine.generateProfileKeyPair();
+        JSONObject obj = new JSONObject("{\"type\":\"text\",\"message\":\"Hello, world!\",\"seqts\":\"2018-09-17T14:04:27.373\"}");
+        engine.signObject(obj, keyPair);
+        Assert.assertTrue(SpxpCryptoToolsV03.verifySignature(obj, keyPair.extractProfilePublicKey(), null));
+        Assert.assertTrue(engine.verifySignature(obj, keyPair.extractProfilePublicKey(), null, null));
+        obj.put("message", "Hello, mallory!");
+        Assert.assertFalse(engine.verifySignature(obj, keyPair.extractProfilePublicKey(), null, null));
+    }
+
+    @Test
+    public void metricsAreRecorded() throws Exception {
+        final ConcurrentHashMap<String, AtomicInteger> completed = new ConcurrentHashMap<>();
+        final AtomicInteger failed = new AtomicInteger();
+        SpxpCryptoEngine engine = SpxpCryptoEngine.builder().metrics(new SpxpCryptoMetrics() {
+            @Override
+            public void operationCompleted(String operation, long durationNanos, boolean success) {
+                Assert.assertTrue(durationNanos >= 0);
+                if(success) {
+                    completed.computeIfAbsent(operation, k -> new AtomicInteger()).incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            }
+        }).build();
+        SpxpSymmetricKeySpec key = new SpxpSymmetricKeySpec("test", engine.generateSymmetricKey(256));
+        String compact = engine.encryptSymmetricCompact(MESSAGE, key);
+        engine.decryptSymmetricCompact(compact, keyProvider(key));
+        try {
+            engine.decryptSymmetricCompact("invalid", keyProvider(key));
+            Assert.fail();
+        } catch(SpxpCryptoException e) {
+            // expected
+        }
+        Assert.assertEquals(1, completed.get("encryptSymmetricCompact").get());
+        Assert.assertEquals(1, completed.get("decryptSymmetricCompact").get());
+        Assert.assertEquals(1, failed.get());
+    }
+
+}